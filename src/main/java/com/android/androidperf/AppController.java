@@ -1,5 +1,6 @@
 package com.android.androidperf;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -17,15 +18,12 @@ import javafx.scene.text.Text;
 import javafx.util.StringConverter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import se.vidstige.jadb.JadbDevice;
-import se.vidstige.jadb.JadbException;
 
-import java.io.IOException;
 import java.net.URL;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AppController implements Initializable {
     private static final Logger LOGGER = LogManager.getLogger(AppController.class);
@@ -43,16 +41,28 @@ public class AppController implements Initializable {
     private LineChart<Number, Number> lineChartCPU;
     @FXML
     private LineChart<Number, Number> lineChartNetwork;
+    @FXML
+    private LineChart<Number, Number> lineChartThreads;
     private final HashMap<String, LineChart<Number, Number>> lineChartMap = new HashMap<>();
+    // all points of each series, the series themselves only hold a decimated copy
+    private final HashMap<XYChart.Series<Number, Number>, SeriesBuffer> seriesBuffers = new HashMap<>();
+    // points kept per series, a day at 1 Hz
+    private static final int SERIES_CAPACITY = 86400;
+    // fewest points a series is decimated to, used before the chart is laid out
+    private static final int MIN_DECIMATED_POINTS = 200;
+    // samples waiting for the next frame, filled by the sampling threads
+    private final ConcurrentLinkedQueue<Sample> pendingSamples = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingSampleCount = new AtomicInteger();
+    private final AtomicBoolean uiUpdateRequested = new AtomicBoolean(false);
+    private static final int MAX_PENDING_SAMPLES = 10000;
 
     public Device selectedDevice;
     private final HashMap<String, Device> deviceMap = new HashMap<>();
-    private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
 
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
         // initialize the device list
-        updateDeviceList();
+        startDeviceTracking();
 
         // initialize property table
         TableColumn<DeviceProp, String> nameCol = new TableColumn<>("Property");
@@ -74,49 +84,62 @@ public class AppController implements Initializable {
 
         // initialize line charts
         initAllLineCharts();
+        startUIPump();
 
         // UI update
         updateUIOnStateChanges();
         packageListBox.setDisable(true);
 
         // activate auto refresh task
-        executorService.scheduleAtFixedRate(this::refreshTask, 500, 500, TimeUnit.MILLISECONDS);
+        SamplingScheduler.getInstance().schedule(null, this::refreshTask, 500, 500);
     }
 
-    private void updateDeviceList() {
-        try {
-            List<JadbDevice> adbDevices = Device.connection.getDevices();
-            ArrayList<String> obsoletes = new ArrayList<>(deviceListBox.getItems());
-            if (selectedDevice != null && selectedDevice.isDeviceAlive()) {
-                obsoletes.remove(selectedDevice.getDeviceADBID());
-            }
-            obsoletes.forEach(str -> {
-                deviceListBox.getItems().remove(str);
-                Device device = deviceMap.get(str);
-                if (device != null) {
-                    device.shutdown();
-                    deviceMap.remove(str);
-                }
-            });
-            for (JadbDevice adbDevice : adbDevices) {
-                if (deviceMap.get(adbDevice.getSerial()) == null) {
-                    Device device = new Device(adbDevice, this);
-                    deviceListBox.getItems().add(device.getDeviceADBID());
+    /**
+     * Track connected devices, devices are added to and removed from the list as the adb server reports them
+     */
+    private void startDeviceTracking() {
+        DeviceRegistry.getInstance().start(adbDevice -> {
+            Device device = new Device(adbDevice, this);
+            // devices are probed in parallel, off the UI thread
+            device.startDiscovery();
+            return device;
+        }, new DeviceRegistry.Listener() {
+            @Override
+            public void onDeviceAdded(Device device) {
+                Platform.runLater(() -> {
                     deviceMap.put(device.getDeviceADBID(), device);
-                }
+                    deviceListBox.getItems().add(device.getDeviceADBID());
+                });
             }
-        } catch (IOException | JadbException e) {
-            LOGGER.error("Cannot get device list");
-        }
+
+            @Override
+            public void onDeviceRemoved(Device device) {
+                Platform.runLater(() -> {
+                    deviceMap.remove(device.getDeviceADBID());
+                    deviceListBox.getItems().remove(device.getDeviceADBID());
+                    if (device == selectedDevice) {
+                        selectedDevice = null;
+                        packageListBox.getItems().clear();
+                        packageListBox.setDisable(true);
+                        propTable.setItems(FXCollections.observableArrayList());
+                        updateUIOnStateChanges();
+                        MainApplication.alert("Device is offline!", Alert.AlertType.ERROR);
+                    }
+                });
+            }
+        });
     }
 
     private void initAllLineCharts() {
-        initLineChart(lineChartFPS, "FPS", new String[]{"FPS"}, 60, 10, "FPS");
-        initLineChart(lineChartCPU, "CPU", new String[]{"App", "Total"}, 100, 20, "%");
-        initLineChart(lineChartNetwork, "Network", new String[]{"Recv", "Send"}, 1000, 100, "KB/s");
+        initLineChart(lineChartFPS, FPSPerfService.CHART, FPSPerfService.SERIES, 60, 10, "FPS");
+        initLineChart(lineChartCPU, CPUPerfService.CHART, CPUPerfService.SERIES, 100, 20, "%");
+        initLineChart(lineChartNetwork, NetworkPerfService.CHART, NetworkPerfService.SERIES, 1000, 100, "KB/s");
+        initLineChart(lineChartThreads, CPUPerfService.THREADS_CHART, new String[]{}, 100, 20, "%");
     }
 
     private void initLineChart(LineChart<Number, Number> lineChart, String chartName, String[] series, int yBound, int yTick, String yLabel) {
+        if (lineChart.getData() != null)
+            lineChart.getData().forEach(seriesBuffers::remove);
         ObservableList<XYChart.Series<Number, Number>> seriesList = FXCollections.observableArrayList();
         for (String s : series) {
             XYChart.Series<Number, Number> data = new XYChart.Series<>();
@@ -125,7 +148,8 @@ public class AppController implements Initializable {
         }
         lineChart.setData(seriesList);
 
-        lineChart.setAnimated(true);
+        // animating thousands of points keeps the UI thread busy
+        lineChart.setAnimated(false);
         lineChart.setTitle(chartName);
 
         NumberAxis xAxis = (NumberAxis) lineChart.getXAxis();
@@ -160,32 +184,122 @@ public class AppController implements Initializable {
         lineChartMap.put(chartName, lineChart);
     }
 
-    @SafeVarargs
-    public final void addDataToChart(String chartName, XYChart.Data<Number, Number>... dataArrays) {
+    /**
+     * Queue a sample to be charted on the next frame, safe to call from any thread.
+     * Samples beyond what the UI has caught up with are dropped, they are only shown, not recorded.
+     */
+    void postSample(Sample sample) {
+        if (pendingSampleCount.incrementAndGet() > MAX_PENDING_SAMPLES) {
+            pendingSampleCount.decrementAndGet();
+            return;
+        }
+        pendingSamples.add(sample);
+    }
+
+    /**
+     * Have the UI reflect the profiling state on the next frame, safe to call from any thread
+     */
+    void requestUIUpdate() {
+        uiUpdateRequested.set(true);
+    }
+
+    /**
+     * Apply the queued samples and state changes once per frame, however fast they come
+     */
+    private void startUIPump() {
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                if (uiUpdateRequested.getAndSet(false))
+                    updateUIOnStateChanges();
+                if (pendingSamples.isEmpty())
+                    return;
+                LinkedHashMap<String, ArrayList<Sample>> samplesByChart = new LinkedHashMap<>();
+                Sample sample;
+                while ((sample = pendingSamples.poll()) != null) {
+                    pendingSampleCount.decrementAndGet();
+                    samplesByChart.computeIfAbsent(sample.chartName, name -> new ArrayList<>()).add(sample);
+                }
+                samplesByChart.forEach(AppController.this::addSamplesToChart);
+            }
+        }.start();
+    }
+
+    /**
+     * Add samples to a chart, with one change to each of its series.
+     * Series the latest sample has no value for are removed, such as threads no longer among the busiest,
+     * and new ones are appended.
+     *
+     * @param chartName name of the chart
+     * @param samples   samples of the chart, oldest first
+     */
+    private void addSamplesToChart(String chartName, List<Sample> samples) {
         LineChart<Number, Number> lineChart = lineChartMap.get(chartName);
+        if (lineChart == null)
+            return;
+        var seriesList = lineChart.getData();
+        Sample latest = samples.get(samples.size() - 1);
+        HashSet<String> names = new HashSet<>(Arrays.asList(latest.series));
+        seriesList.removeIf(series -> {
+            if (names.contains(series.getName()))
+                return false;
+            seriesBuffers.remove(series);
+            return true;
+        });
+        HashMap<String, XYChart.Series<Number, Number>> seriesByName = new HashMap<>();
+        seriesList.forEach(series -> seriesByName.put(series.getName(), series));
+        for (String name : latest.series) {
+            if (!seriesByName.containsKey(name)) {
+                XYChart.Series<Number, Number> series = new XYChart.Series<>();
+                series.setName(name);
+                seriesList.add(series);
+                seriesByName.put(name, series);
+            }
+        }
 
-        double yMax = Double.MIN_VALUE;
-        for (int i = 0; i < dataArrays.length; i++) {
-            var data = dataArrays[i];
-            var series = lineChart.getData().get(i).getData();
-            int xVal = data.getXValue().intValue();
-            NumberAxis xAxis = (NumberAxis) lineChart.getXAxis();
-            double xBound = xAxis.getUpperBound();
-            if (xVal > xBound) {
-                xBound = xVal + 15;
-                xAxis.setUpperBound(xBound);
-                xAxis.setTickUnit(xAxis.getTickUnit() + 1);
+        // fill the buffers first, then change each series once
+        HashMap<XYChart.Series<Number, Number>, ArrayList<XYChart.Data<Number, Number>>> newPoints = new HashMap<>();
+        double xMax = 0;
+        for (var sample : samples) {
+            for (int i = 0; i < sample.series.length; i++) {
+                var series = seriesByName.get(sample.series[i]);
+                if (series == null)
+                    continue;
+                seriesBuffers.computeIfAbsent(series, s -> new SeriesBuffer(SERIES_CAPACITY)).add(sample.time, sample.values[i]);
+                newPoints.computeIfAbsent(series, s -> new ArrayList<>()).add(new XYChart.Data<>(sample.time, sample.values[i]));
             }
+            xMax = Math.max(xMax, sample.time);
+        }
 
-            Optional<XYChart.Data<Number, Number>> max = series.stream().max(Comparator.comparingDouble(fc -> fc.getYValue().doubleValue()));
-            if (max.isPresent()) {
-                double y = max.get().getYValue().doubleValue();
-                if (y > yMax)
-                    yMax = y;
+        NumberAxis xAxis = (NumberAxis) lineChart.getXAxis();
+        // about one point per pixel, more would not show
+        int threshold = Math.max(MIN_DECIMATED_POINTS, (int) xAxis.getWidth());
+        double xMin = 0;
+        double yMax = Double.MIN_VALUE;
+        for (var series : seriesList) {
+            SeriesBuffer buffer = seriesBuffers.get(series);
+            if (buffer == null || buffer.size() == 0)
+                continue;
+            var points = newPoints.get(series);
+            if (points != null) {
+                // between decimations new points are appended as they are, until every bucket has grown by one
+                if (buffer.size() <= threshold || buffer.getAddedSinceDecimation() < buffer.size() / threshold)
+                    series.getData().addAll(points);
+                else
+                    series.getData().setAll(decimate(buffer, threshold));
             }
-            series.add(data);
+            if (buffer.hasDropped())
+                xMin = Math.max(xMin, Math.floor(buffer.getX(0)));
+            if (buffer.getMax() > yMax)
+                yMax = buffer.getMax();
         }
 
+        if ((int) xMax > xAxis.getUpperBound()) {
+            xAxis.setUpperBound((int) xMax + 15);
+            xAxis.setTickUnit(xAxis.getTickUnit() + 1);
+        }
+        xAxis.setLowerBound(xMin);
+
         NumberAxis yAxis = (NumberAxis) lineChart.getYAxis();
         int yBound = (int) yAxis.getUpperBound();
         if (yMax == Double.MIN_VALUE)
@@ -197,6 +311,14 @@ public class AppController implements Initializable {
         }
     }
 
+    private static ArrayList<XYChart.Data<Number, Number>> decimate(SeriesBuffer buffer, int threshold) {
+        int[] indices = buffer.decimate(threshold);
+        ArrayList<XYChart.Data<Number, Number>> points = new ArrayList<>(indices.length);
+        for (int i : indices)
+            points.add(new XYChart.Data<>(buffer.getX(i), buffer.getY(i)));
+        return points;
+    }
+
     public void handleDeviceListBox() {
         if (selectedDevice != null)
             selectedDevice.endPerf();
@@ -204,6 +326,8 @@ public class AppController implements Initializable {
         selectedDevice = deviceMap.get(deviceID);
         if (selectedDevice == null)
             return;
+        // the rows are filled in as the discovery of the device goes on
+        propTable.setItems(selectedDevice.getProps());
 
         Dialog<String> dialog = new Dialog<>();
         //Setting the title
@@ -220,16 +344,10 @@ public class AppController implements Initializable {
             Platform.runLater(() -> {
                 dialog.getDialogPane().getButtonTypes().addAll(ButtonType.CANCEL);
                 dialog.close();
-                propTable.getItems().clear();
 
                 // initialize the package list
                 packageListBox.setItems(selectedDevice.getPackageList());
 
-                // initialize basic properties of the device
-                ArrayList<DeviceProp> props = selectedDevice.getProps();
-                ObservableList<DeviceProp> data = FXCollections.observableArrayList(props);
-                propTable.getItems().addAll(data);
-
                 // UI update
                 updateUIOnStateChanges();
                 packageListBox.setDisable(false);
@@ -239,7 +357,10 @@ public class AppController implements Initializable {
             dialog.getDialogPane().getButtonTypes().addAll(ButtonType.CANCEL);
             dialog.close();
             MainApplication.alert("Cannot connect device, please retry!", Alert.AlertType.ERROR);
-            Platform.runLater(()->deviceListBox.getSelectionModel().clearSelection());
+            Platform.runLater(() -> {
+                propTable.setItems(FXCollections.observableArrayList());
+                deviceListBox.getSelectionModel().clearSelection();
+            });
         });
         new Thread(task).start();
     }
@@ -286,12 +407,12 @@ public class AppController implements Initializable {
     }
 
     public void handleUpdateBtn() {
-        updateDeviceList();
+        DeviceRegistry.getInstance().refresh();
         if (selectedDevice != null) {
             selectedDevice.updatePackageList();
         } else {
             packageListBox.getItems().clear();
-            propTable.getItems().clear();
+            propTable.setItems(FXCollections.observableArrayList());
         }
     }
 
@@ -318,7 +439,7 @@ public class AppController implements Initializable {
     }
 
     public void shutdown() {
-        deviceMap.forEach((s, device) -> device.shutdown());
-        executorService.shutdownNow();
+        DeviceRegistry.getInstance().stop();
+        SamplingScheduler.getInstance().shutdown();
     }
 }
@@ -1,32 +1,143 @@
 package com.android.androidperf;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
-public class BasePerfService extends Thread {
+public class BasePerfService {
+    private static final Logger LOGGER = LogManager.getLogger(BasePerfService.class);
+    // rate each service actually sampled at, one series per service, recorded but not charted
+    static final String RATE_CHART = "SamplingRate";
 
-    protected ConcurrentLinkedQueue<Object> dataQueue = new ConcurrentLinkedQueue<>();
+    // samples waiting to be written to the recorder of the device
+    protected ConcurrentLinkedQueue<Sample> dataQueue = new ConcurrentLinkedQueue<>();
     protected Device device = null;
-    protected long timer = 0;
-    protected Future<?> updateTask = null;
-    protected Future<?> dumpTask = null;
-    protected ScheduledExecutorService executorService = Executors.newScheduledThreadPool(3);
+    protected SamplingScheduler.Task updateTask = null;
+    protected SamplingScheduler.Task dumpTask = null;
+
+    /**
+     * Write the queued samples to the recorder, off the sampling path
+     */
+    void dump() {
+        MetricRecorder recorder = device.getRecorder();
+        if (recorder != null && updateTask != null && !updateTask.isCancelled())
+            publish(RATE_CHART, sampleTime(), new String[]{getClass().getSimpleName()}, getAchievedRate());
+        Sample sample;
+        while ((sample = dataQueue.poll()) != null) {
+            if (recorder == null)
+                continue;
+            try {
+                recorder.append(sample);
+            } catch (IOException e) {
+                LOGGER.error("Cannot record samples", e);
+                dataQueue.clear();
+                return;
+            }
+        }
+    }
+    void update() {}
 
-    void dump() {}
-    void update() {timer++;}
+    /**
+     * Add the server requests of the next {@link #update()} to the batch of its tick,
+     * for services that schedule their update with a preparation
+     */
+    void prepare(ServerBatch batch) {}
     void begin() {
-        updateTask = executorService.scheduleAtFixedRate(this::update, 0, 1000, TimeUnit.MILLISECONDS);
-        dumpTask = executorService.scheduleAtFixedRate(this::dump, 1000, 1000, TimeUnit.MILLISECONDS);
+        updateTask = scheduleUpdate();
+        dumpTask = scheduleSampling(this::dump, 1000, 1000);
     }
     void end() {
         if (updateTask != null)
-            updateTask.cancel(true);
+            updateTask.cancel();
         if (dumpTask != null)
-            dumpTask.cancel(true);
-        timer = 0;
+            dumpTask.cancel();
+        dump();
         dataQueue.clear();
     }
-    void shutdown() {executorService.shutdownNow();}
+    void shutdown() {end();}
     void registerDevice(Device dev) {
         device = dev;
     }
+
+    /**
+     * Schedule {@link #update()}, services override this to pick their sampling rates
+     *
+     * @return the handle to cancel the task
+     */
+    protected SamplingScheduler.Task scheduleUpdate() {
+        return scheduleSampling(this::update, 0, 1000);
+    }
+
+    /**
+     * Register a periodic task of this service with the shared sampling scheduler
+     *
+     * @param task         the task
+     * @param initialDelay delay before the first run in milliseconds
+     * @param period       period between runs in milliseconds
+     * @return the handle to cancel the task
+     */
+    protected SamplingScheduler.Task scheduleSampling(Runnable task, long initialDelay, long period) {
+        return SamplingScheduler.getInstance().schedule(device, task, initialDelay, period);
+    }
+
+    /**
+     * Register a periodic task whose rate adapts to how fast the device answers
+     *
+     * @param task         the task
+     * @param initialDelay delay before the first run in milliseconds
+     * @param minPeriod    shortest period in milliseconds
+     * @param maxPeriod    longest period in milliseconds
+     * @return the handle to cancel the task
+     */
+    protected SamplingScheduler.Task scheduleAdaptiveSampling(Runnable task, long initialDelay, long minPeriod, long maxPeriod) {
+        return scheduleAdaptiveSampling(task, null, initialDelay, minPeriod, maxPeriod);
+    }
+
+    /**
+     * Register a periodic task whose rate adapts to how fast the device answers,
+     * and whose server requests go out with those of the other tasks of the same tick
+     *
+     * @param task         the task
+     * @param prepare      adds the server requests of the next run to the batch of its tick
+     * @param initialDelay delay before the first run in milliseconds
+     * @param minPeriod    shortest period in milliseconds
+     * @param maxPeriod    longest period in milliseconds
+     * @return the handle to cancel the task
+     */
+    protected SamplingScheduler.Task scheduleAdaptiveSampling(Runnable task, Consumer<ServerBatch> prepare, long initialDelay,
+                                                              long minPeriod, long maxPeriod) {
+        return SamplingScheduler.getInstance().scheduleAdaptive(device, task, prepare, initialDelay, minPeriod, maxPeriod);
+    }
+
+    /**
+     * Show a sample in the charts and queue it for recording
+     *
+     * @param chartName name of the chart
+     * @param time      time of the sample, see {@link #sampleTime()}
+     * @param series    names of the series of the chart
+     * @param values    value of each series
+     */
+    protected void publish(String chartName, double time, String[] series, double... values) {
+        Sample sample = new Sample(chartName, time, series, values);
+        device.showSample(sample);
+        if (device.getRecorder() != null)
+            dataQueue.add(sample);
+    }
+
+    /**
+     * @return seconds elapsed since the start of profiling, or of the recording, used to timestamp samples
+     */
+    protected double sampleTime() {
+        return (System.nanoTime() - device.getPerfStartTime()) / 1e9;
+    }
+
+    /**
+     * @return the rate at which {@link #update()} actually ran recently, in samples per second
+     */
+    double getAchievedRate() {
+        return updateTask == null ? 0 : updateTask.getAchievedRate();
+    }
 }
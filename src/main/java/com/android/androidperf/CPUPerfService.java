@@ -1,17 +1,52 @@
 package com.android.androidperf;
 
-import javafx.application.Platform;
-import javafx.scene.chart.XYChart;
 import javafx.util.Pair;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class CPUPerfService extends BasePerfService {
     static private final Pattern totalCPUPattern = Pattern.compile(".* +([\\d.]+)");
     static private final Pattern totalCPUPatternOld = Pattern.compile("([\\d.]+)%");
+    static final String CHART = "CPU";
+    static final String[] SERIES = {"App", "Total"};
+    // series of the threads chart are named after the threads shown
+    static final String THREADS_CHART = "Threads";
+    // busy percentage of each core, series named cpu0, cpu1, ..., recorded but not charted
+    static final String CORES_CHART = "Cores";
+    // number of busiest threads charted, and of thread series kept on the chart at most
+    private static final int TOP_THREADS = 5;
+    private static final int MAX_THREAD_SERIES = 8;
+    private ProcStatSampler sampler = null;
+    private ThreadStatSampler threadSampler = null;
+    private double[] coreUsage = new double[0];
+    private String[] coreSeries = new String[0];
+    // threads shown on the chart, least recently among the busiest first
+    private final LinkedHashSet<Integer> shownThreads = new LinkedHashSet<>();
 
+    /**
+     * Acquire CPU utilisation from jiffy counters, falling back to top where /proc/stat cannot be read
+     *
+     * @return app and total utilisation in percent of the whole device,
+     * or null if only the baseline of the counters has been taken
+     */
     Pair<Double, Double> acquireCPUData() {
+        ProcStatSampler.Sample sample = sampler.sample();
+        if (sample != null) {
+            coreUsage = sample.coreUsage;
+            return new Pair<>(sample.appUsage, sample.totalUsage);
+        }
+        if (sampler.isAvailable())
+            return null;
+        Pair<Double, Double> data = acquireCPUDataFromTop();
+        return new Pair<>(data.getKey() / device.getCpuCores(), data.getValue() / device.getCpuCores());
+    }
+
+    Pair<Double, Double> acquireCPUDataFromTop() {
         String info = device.execCmd("top -o CMDLINE,%CPU -n 1 -q -b -k%CPU");
         String packageName = device.getTargetPackage();
         Matcher matcher;
@@ -50,18 +85,86 @@ public class CPUPerfService extends BasePerfService {
         return new Pair<>(procUsage, totalUsage);
     }
 
+    /**
+     * Sample the threads of the target package and pick the ones to chart
+     *
+     * @return utilisation of the charted threads in percent of one core, by thread label
+     */
+    LinkedHashMap<String, Double> acquireThreadData() {
+        List<ThreadStatSampler.ThreadInfo> threads = threadSampler.sample(
+                sampler.getPids(), sampler.getTotalJiffies(), sampler.getOnlineCores());
+
+        LinkedHashMap<Integer, ThreadStatSampler.ThreadInfo> byTid = new LinkedHashMap<>();
+        for (var thread : threads)
+            byTid.put(thread.tid, thread);
+        for (var thread : threads.subList(0, Math.min(threads.size(), TOP_THREADS))) {
+            if (thread.usage <= 0)
+                break;
+            // move to the back, so the threads that left the top longest ago are dropped first
+            shownThreads.remove(thread.tid);
+            shownThreads.add(thread.tid);
+        }
+        shownThreads.removeIf(tid -> threadSampler.getThread(tid) == null);
+        Iterator<Integer> iterator = shownThreads.iterator();
+        while (shownThreads.size() > MAX_THREAD_SERIES && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+
+        LinkedHashMap<String, Double> data = new LinkedHashMap<>();
+        for (int tid : shownThreads) {
+            var thread = threadSampler.getThread(tid);
+            // threads not read this tick were idle at the last full scan
+            data.put(thread.getLabel(), byTid.containsKey(tid) ? thread.usage : 0.);
+        }
+        return data;
+    }
+
+    @Override
+    protected SamplingScheduler.Task scheduleUpdate() {
+        return scheduleAdaptiveSampling(this::update, 0, 500, 5000);
+    }
+
+    @Override
+    void registerDevice(Device dev) {
+        super.registerDevice(dev);
+        sampler = new ProcStatSampler(dev);
+        threadSampler = new ThreadStatSampler(dev);
+    }
+
+    @Override
+    void begin() {
+        sampler.reset();
+        threadSampler.reset();
+        coreUsage = new double[0];
+        shownThreads.clear();
+        super.begin();
+    }
+
     @Override
     void update() {
         Pair<Double, Double> data = acquireCPUData();
+        LinkedHashMap<String, Double> threadData = sampler.isAvailable() ? acquireThreadData() : null;
+        if (data == null) {
+            super.update();
+            return;
+        }
+        double time = sampleTime();
         double procUsage = data.getKey();
         double totalUsage = data.getValue();
 
-        Platform.runLater(() -> device.getController()
-                .addDataToChart(
-                        "CPU",
-                        new XYChart.Data<>(timer, procUsage / device.getCpuCores()),
-                        new XYChart.Data<>(timer, totalUsage / device.getCpuCores()))
-        );
+        publish(CHART, time, SERIES, procUsage, totalUsage);
+        if (threadData != null)
+            publish(THREADS_CHART, time, threadData.keySet().toArray(new String[0]),
+                    threadData.values().stream().mapToDouble(Double::doubleValue).toArray());
+        if (coreUsage.length > 0) {
+            if (coreSeries.length != coreUsage.length) {
+                coreSeries = new String[coreUsage.length];
+                for (int i = 0; i < coreSeries.length; i++)
+                    coreSeries[i] = "cpu" + i;
+            }
+            publish(CORES_CHART, time, coreSeries, coreUsage);
+        }
 
         super.update();
     }
@@ -3,7 +3,6 @@ package com.android.androidperf;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import se.vidstige.jadb.JadbConnection;
@@ -11,14 +10,20 @@ import se.vidstige.jadb.JadbDevice;
 import se.vidstige.jadb.JadbDevice.ForwardType;
 import se.vidstige.jadb.JadbException;
 import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.managers.Bash;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
-import java.net.InetAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -27,92 +32,335 @@ public class Device {
     private static final Logger LOGGER = LogManager.getLogger(Device.class);
     static JadbConnection connection = new JadbConnection();
     private final JadbDevice jadbDevice;
+    private final ShellSessionPool shellPool;
+    // null when recording headless
     private final AppController controller;
+    private volatile MetricRecorder recorder = null;
+    // time base of the samples of all services, see getPerfStartTime()
+    private volatile long perfStartTime = System.nanoTime();
 
     private final String deviceADBID;
-    private final String deviceName;
-    private final int sdkVersion;
-    private final String androidVersion;
-    private final String abiList;
-    private final String glVendor;
-    private final String glRenderer;
-    private final String glVersion;
-    private final int cpuCores;
-    private final String cpuModel;
-    private final ArrayList<String> cpuFrequencies;
-    private final double memSize;
-    private final double storageSize;
-    private final ArrayList<DeviceProp> props = new ArrayList<>();
+    // filled in by the discovery, read them once it has completed
+    private volatile String deviceName;
+    private volatile int sdkVersion = 0;
+    private volatile String androidVersion = "Unknown";
+    private volatile String abiList = "Unknown";
+    private volatile String glVendor = "Unknown";
+    private volatile String glRenderer = "Unknown";
+    private volatile String glVersion = "Unknown";
+    private volatile int cpuCores = 1;
+    private volatile String cpuModel = "Unknown";
+    private volatile ArrayList<String> cpuFrequencies = new ArrayList<>();
+    private volatile double memSize = 0;
+    private volatile double storageSize = 0;
+    private final ObservableList<DeviceProp> props = FXCollections.observableArrayList();
+    private CompletableFuture<Void> discovery = null;
 
     private final ArrayList<BasePerfService> services = new ArrayList<>();
     private final ArrayList<Layer> layers = new ArrayList<>();
     private final ObservableList<String> packageList = FXCollections.observableArrayList();
+    private final List<LayerChangeListener> layerChangeListeners = new CopyOnWriteArrayList<>();
     private String lastLayerInfo = "";
+    // names of the last layer list, and of those that were looked up for the target package
+    private Set<String> lastLayerNames = null;
+    private Set<String> trackedLayerNames = new HashSet<>();
     private String targetPackage;
     private int targetPackageUid;
 
     private boolean hasStartedPerf = false;
-    private int localPort = -1;
+    private final Object serverLock = new Object();
+    private volatile ServerConnection serverConnection = null;
+    private final AtomicBoolean isRecoveringServer = new AtomicBoolean(false);
 
     private static final String SERVER_PATH_BASE = "/data/local/tmp";
     private static final String SERVER_EXECUTABLE = "AndroidPerfServer";
     private static final String SERVER_FW_EXECUTABLE = "AndroidPerfServerFW";
-    private static final String MSG_END = "PERF_MSG_END\n";
+    // MD5 of the server files on this machine by path, modification time and size, computed once for all devices
+    private static final ConcurrentHashMap<String, String> LOCAL_DIGESTS = new ConcurrentHashMap<>();
     private static final String UNIX_SOCKET = "AndroidPerf";
+    private static final ExecutorService DISCOVERY_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "device-discovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService REQUEST_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "server-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // rows of the property table
+    private static final String[] PROP_NAMES = {"Name", "SDK Version", "Android Version", "CPU Model", "CPU Cores",
+            "CPU Frequencies", "ABI List", "Memory", "Storage", "GL Vendor", "GL Renderer", "GL Version"};
+    private static final int PROP_NAME = 0, PROP_SDK_VERSION = 1, PROP_ANDROID_VERSION = 2, PROP_CPU_MODEL = 3,
+            PROP_CPU_CORES = 4, PROP_CPU_FREQUENCIES = 5, PROP_ABI_LIST = 6, PROP_MEMORY = 7, PROP_STORAGE = 8,
+            PROP_GL_VENDOR = 9, PROP_GL_RENDERER = 10, PROP_GL_VERSION = 11;
+    // commands of the discovery batch, cheap ones first so most rows fill in quickly
+    private static final String[] DISCOVERY_CMDS = {
+            "getprop ro.product.model",
+            "getprop ro.build.version.sdk",
+            "getprop ro.build.version.release",
+            "cat /proc/cpuinfo",
+            "getprop ro.board.platform",
+            "ls /sys/devices/system/cpu",
+            "for c in /sys/devices/system/cpu/cpu[0-9]*; do " +
+                    "echo $(cat $c/cpufreq/cpuinfo_min_freq 2>/dev/null) $(cat $c/cpufreq/cpuinfo_max_freq 2>/dev/null); done",
+            "getprop ro.product.cpu.abilist",
+            "cat /proc/meminfo | grep MemTotal",
+            "df | grep /storage/emulated",
+            "dumpsys SurfaceFlinger | grep OpenGL",
+            "dumpsys package r activity",
+            "ps -A"
+    };
+    private static final int PROBE_MODEL = 0, PROBE_SDK = 1, PROBE_RELEASE = 2, PROBE_CPU_INFO = 3, PROBE_BOARD = 4,
+            PROBE_CPU_CORES = 5, PROBE_CPU_FREQ = 6, PROBE_ABI = 7, PROBE_MEMORY = 8, PROBE_STORAGE = 9,
+            PROBE_GL = 10, PROBE_PACKAGES = 11, PROBE_PROCESSES = 12;
     private static final Pattern cpuModelPattern = Pattern.compile("model name\\s*:\\s*(.*)");
     private static final Pattern cpuCorePattern = Pattern.compile("cpu\\d+");
     private static final Pattern cpuFreqPattern = Pattern.compile("cpu MHz\\s*:\\s*(.*)");
-    private static final Pattern layerNamePattern = Pattern.compile("[*+] .*Layer.*\\(.*\\).*");
-    private static final Pattern bufferSizePattern = Pattern.compile("activeBuffer=\\[([ \\d]+)x([ \\d]+):.*");
-    private static final Pattern bufferPosPattern = Pattern.compile("pos=\\(\\s*(-?\\d+),\\s*(-?\\d+)\\),");
-    private static final Pattern bufferZOrderPattern = Pattern.compile("z=\\s*(-?\\d+),");
-    private static final Pattern bufferParentPattern = Pattern.compile("parent=(\\S+)");
-    private static final Pattern bufferZRelativeOrderPattern = Pattern.compile("zOrderRelativeOf=(\\S+)");
-
-    private static final Pattern bufferStatsPatternR = Pattern.compile(".*slot=(\\S*)");
 
     Device(JadbDevice device, AppController appController) {
         jadbDevice = device;
+        shellPool = new ShellSessionPool(device);
         controller = appController;
         deviceADBID = jadbDevice.getSerial();
-        killServer();
+        deviceName = deviceADBID;
 
         // register perf services
         registerService(FPSPerfService.class);
         registerService(CPUPerfService.class);
         registerService(NetworkPerfService.class);
 
-        // acquire device name
-        String info = execCmd("getprop ro.product.model");
-        if (!info.isEmpty())
-            deviceName = info;
-        else
-            deviceName = deviceADBID;
-        props.add(new DeviceProp("Name", deviceName));
+        // the rows are filled in by the discovery as values arrive
+        for (String name : PROP_NAMES)
+            props.add(new DeviceProp(name, "..."));
+    }
 
-        // acquire SDK/Android versions
-        String versionStr = execCmd("getprop ro.build.version.sdk");
-        int version;
+    /**
+     * Start probing the device properties in the background
+     *
+     * @return the discovery, completed once all properties are known
+     */
+    CompletableFuture<Void> startDiscovery() {
+        synchronized (this) {
+            if (discovery == null)
+                discovery = CompletableFuture.runAsync(this::discover, DISCOVERY_EXECUTOR);
+            return discovery;
+        }
+    }
+
+    /**
+     * Wait until the device properties are known, starting the discovery if needed
+     */
+    void awaitDiscovery() {
         try {
-            version = Integer.parseInt(versionStr);
+            startDiscovery().join();
+        } catch (CompletionException | CancellationException e) {
+            LOGGER.error("Device discovery failed", e);
+        }
+    }
+
+    /**
+     * Probe all device properties with one batch of commands, updating each property as its output arrives
+     */
+    private void discover() {
+        killServer();
+
+        // static properties only change with the build, a known build is not probed again
+        String fingerprint = execCmd("getprop ro.build.fingerprint");
+        if (fingerprint.contains("Error"))
+            fingerprint = null;
+        Properties profile = DeviceProfileCache.load(deviceADBID, fingerprint);
+        if (profile != null && applyProfile(profile)) {
+            updatePackageList();
+            return;
+        }
+
+        String[] cpuInfo = {""};
+        String[] packageInfo = {""};
+        execBatch(Arrays.asList(DISCOVERY_CMDS), (index, output) -> {
+            output = output.strip();
+            switch (index) {
+                case PROBE_MODEL:
+                    if (!output.isEmpty())
+                        deviceName = output;
+                    setProp(PROP_NAME, deviceName);
+                    break;
+                case PROBE_SDK:
+                    try {
+                        sdkVersion = Integer.parseInt(output);
+                    } catch (NumberFormatException e) {
+                        sdkVersion = 0;
+                        LOGGER.error(String.format("Cannot get SDK version, getprop is %s", output));
+                    }
+                    setProp(PROP_SDK_VERSION, String.valueOf(sdkVersion));
+                    break;
+                case PROBE_RELEASE:
+                    androidVersion = output;
+                    setProp(PROP_ANDROID_VERSION, androidVersion);
+                    break;
+                case PROBE_CPU_INFO:
+                    cpuInfo[0] = output;
+                    break;
+                case PROBE_BOARD:
+                    parseCPUModel(cpuInfo[0], output);
+                    setProp(PROP_CPU_MODEL, cpuModel);
+                    break;
+                case PROBE_CPU_CORES:
+                    Matcher matcher = cpuCorePattern.matcher(output);
+                    int num = 0;
+                    while (matcher.find()) {
+                        num++;
+                    }
+                    cpuCores = num;
+                    setProp(PROP_CPU_CORES, String.valueOf(cpuCores));
+                    break;
+                case PROBE_CPU_FREQ:
+                    parseCPUFrequencies(output, cpuInfo[0]);
+                    setProp(PROP_CPU_FREQUENCIES, String.join(", ", cpuFrequencies));
+                    break;
+                case PROBE_ABI:
+                    if (!output.isEmpty())
+                        abiList = output;
+                    else {
+                        abiList = "Unknown";
+                        LOGGER.warn("Cannot get ABI info");
+                    }
+                    setProp(PROP_ABI_LIST, abiList);
+                    break;
+                case PROBE_MEMORY:
+                    String[] memInfo = output.split(" +");
+                    if (memInfo.length == 3) {
+                        memSize = Integer.parseInt(memInfo[1]) / 1024. / 1024.;
+                    } else {
+                        memSize = 0;
+                        LOGGER.warn("Cannot get memory info");
+                    }
+                    setProp(PROP_MEMORY, String.format("%.1f", memSize) + " GB");
+                    break;
+                case PROBE_STORAGE:
+                    String[] storageInfo = output.split(" +");
+                    if (storageInfo.length == 6) {
+                        storageSize = Double.parseDouble(storageInfo[1]) / 1024. / 1024.;
+                    } else {
+                        storageSize = 0;
+                        LOGGER.warn("Cannot get storage info");
+                    }
+                    setProp(PROP_STORAGE, Math.round(storageSize) + " GB");
+                    break;
+                case PROBE_GL:
+                    parseGLInfo(output);
+                    setProp(PROP_GL_VENDOR, glVendor);
+                    setProp(PROP_GL_RENDERER, glRenderer);
+                    setProp(PROP_GL_VERSION, glVersion);
+                    break;
+                case PROBE_PACKAGES:
+                    packageInfo[0] = output;
+                    break;
+                case PROBE_PROCESSES:
+                    applyPackageList(packageInfo[0], output);
+                    break;
+            }
+        });
+
+        if (sdkVersion > 0 && cpuCores > 0)
+            DeviceProfileCache.store(deviceADBID, fingerprint, toProfile());
+    }
+
+    /**
+     * @return the static properties of the device, to be cached
+     */
+    private Properties toProfile() {
+        Properties profile = new Properties();
+        profile.setProperty("name", deviceName);
+        profile.setProperty("sdkVersion", String.valueOf(sdkVersion));
+        profile.setProperty("androidVersion", androidVersion);
+        profile.setProperty("cpuModel", cpuModel);
+        profile.setProperty("cpuCores", String.valueOf(cpuCores));
+        profile.setProperty("cpuFrequencies", String.join(", ", cpuFrequencies));
+        profile.setProperty("abiList", abiList);
+        profile.setProperty("memSize", String.valueOf(memSize));
+        profile.setProperty("storageSize", String.valueOf(storageSize));
+        profile.setProperty("glVendor", glVendor);
+        profile.setProperty("glRenderer", glRenderer);
+        profile.setProperty("glVersion", glVersion);
+        return profile;
+    }
+
+    /**
+     * Take the static properties from a cached profile
+     *
+     * @return false if the profile is incomplete, the device must be probed then
+     */
+    private boolean applyProfile(Properties profile) {
+        try {
+            String[] values = new String[PROP_NAMES.length];
+            String[] keys = {"name", "sdkVersion", "androidVersion", "cpuModel", "cpuCores", "cpuFrequencies",
+                    "abiList", "memSize", "storageSize", "glVendor", "glRenderer", "glVersion"};
+            for (String key : keys) {
+                if (profile.getProperty(key) == null)
+                    return false;
+            }
+            int sdk = Integer.parseInt(profile.getProperty("sdkVersion"));
+            int cores = Integer.parseInt(profile.getProperty("cpuCores"));
+            double mem = Double.parseDouble(profile.getProperty("memSize"));
+            double storage = Double.parseDouble(profile.getProperty("storageSize"));
+
+            deviceName = profile.getProperty("name");
+            sdkVersion = sdk;
+            androidVersion = profile.getProperty("androidVersion");
+            cpuModel = profile.getProperty("cpuModel");
+            cpuCores = cores;
+            String frequencies = profile.getProperty("cpuFrequencies");
+            cpuFrequencies = frequencies.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(frequencies.split(", ")));
+            abiList = profile.getProperty("abiList");
+            memSize = mem;
+            storageSize = storage;
+            glVendor = profile.getProperty("glVendor");
+            glRenderer = profile.getProperty("glRenderer");
+            glVersion = profile.getProperty("glVersion");
+
+            values[PROP_NAME] = deviceName;
+            values[PROP_SDK_VERSION] = String.valueOf(sdkVersion);
+            values[PROP_ANDROID_VERSION] = androidVersion;
+            values[PROP_CPU_MODEL] = cpuModel;
+            values[PROP_CPU_CORES] = String.valueOf(cpuCores);
+            values[PROP_CPU_FREQUENCIES] = frequencies;
+            values[PROP_ABI_LIST] = abiList;
+            values[PROP_MEMORY] = String.format("%.1f", memSize) + " GB";
+            values[PROP_STORAGE] = Math.round(storageSize) + " GB";
+            values[PROP_GL_VENDOR] = glVendor;
+            values[PROP_GL_RENDERER] = glRenderer;
+            values[PROP_GL_VERSION] = glVersion;
+            for (int i = 0; i < values.length; i++)
+                setProp(i, values[i]);
+            return true;
         } catch (NumberFormatException e) {
-            version = 0;
-            LOGGER.error(String.format("Cannot get SDK version, getprop is %s", versionStr));
+            return false;
         }
-        sdkVersion = version;
-        props.add(new DeviceProp("SDK Version", String.valueOf(sdkVersion)));
+    }
+
+    private void setProp(int index, String value) {
+        DeviceProp prop = props.get(index);
+        if (controller == null)
+            prop.getPropVal().set(value);
+        else
+            Platform.runLater(() -> prop.getPropVal().set(value));
+    }
 
-        androidVersion = execCmd("getprop ro.build.version.release");
-        props.add(new DeviceProp("Android Version", String.valueOf(androidVersion)));
+    /**
+     * Run an action on the UI thread, devices recorded headless have no UI and skip it
+     */
+    private void runLater(Runnable action) {
+        if (controller != null)
+            Platform.runLater(action);
+    }
 
-        // acquire CPU model info
-        info = execCmd("cat /proc/cpuinfo");
-        String oneCoreInfo = info.split("\n\n")[0];
+    private void parseCPUModel(String cpuInfo, String boardName) {
+        String oneCoreInfo = cpuInfo.split("\n\n")[0];
         Matcher matcher = cpuModelPattern.matcher(oneCoreInfo);
         if (matcher.find()) {
             cpuModel = matcher.group(1);
         } else {
-            String boardName = execCmd("getprop ro.board.platform");
             if (boardName.length() != 0)
                 cpuModel = boardName;
             else {
@@ -120,78 +368,37 @@ public class Device {
                 LOGGER.warn("Cannot get CPU model info");
             }
         }
-        props.add(new DeviceProp("CPU Model", cpuModel));
-
-        // acquire CPU core info
-        info = execCmd("ls /sys/devices/system/cpu");
-        matcher = cpuCorePattern.matcher(info);
-        int num = 0;
-        while (matcher.find()) {
-            num++;
-        }
-        cpuCores = num;
-        props.add(new DeviceProp("CPU Cores", String.valueOf(cpuCores)));
+    }
 
-        // acquire CPU frequency info
+    /**
+     * @param freqInfo "min max" frequencies in kHz, one line per core
+     * @param cpuInfo  content of /proc/cpuinfo, used if the frequencies are not available
+     */
+    private void parseCPUFrequencies(String freqInfo, String cpuInfo) {
         ArrayList<String> frequencies = new ArrayList<>();
-        for (int i = 0; i < cpuCores; i++) {
-            String minFreqInfo = execCmd(String.format("cat /sys/devices/system/cpu/cpu%d/cpufreq/cpuinfo_min_freq", i));
-            String maxFreqInfo = execCmd(String.format("cat /sys/devices/system/cpu/cpu%d/cpufreq/cpuinfo_max_freq", i));
+        for (String line : freqInfo.split("\n")) {
+            String[] freqs = line.strip().split(" +");
+            if (freqs.length != 2)
+                continue;
             try {
-                String freq = String.format("%d MHz-%d MHz", Integer.parseInt(minFreqInfo) / 1000, Integer.parseInt(maxFreqInfo) / 1000);
+                String freq = String.format("%d MHz-%d MHz", Integer.parseInt(freqs[0]) / 1000, Integer.parseInt(freqs[1]) / 1000);
                 if (!frequencies.contains(freq))
                     frequencies.add(freq);
             } catch (NumberFormatException ignored) {
             }
         }
         if (frequencies.size() == 0) {
-            info = execCmd("cat /proc/cpuinfo");
-            matcher = cpuFreqPattern.matcher(info);
-
+            Matcher matcher = cpuFreqPattern.matcher(cpuInfo);
             while (matcher.find()) {
                 String freq = matcher.group(1) + " MHz";
                 if (!frequencies.contains(freq))
                     frequencies.add(freq);
             }
         }
-
         cpuFrequencies = frequencies;
-        props.add(new DeviceProp("CPU Frequencies", String.join(", ", cpuFrequencies)));
-
-        // acquire CPU ABI info
-        info = execCmd("getprop ro.product.cpu.abilist");
-        if (!info.isEmpty())
-            abiList = info;
-        else {
-            abiList = "Unknown";
-            LOGGER.warn("Cannot get ABI info");
-        }
-        props.add(new DeviceProp("ABI List", abiList));
-
-        // acquire memory info
-        info = execCmd("cat /proc/meminfo | grep MemTotal");
-        String[] memInfo = info.split(" +");
-        if (memInfo.length == 3) {
-            memSize = Integer.parseInt(memInfo[1]) / 1024. / 1024.;
-        } else {
-            memSize = 0;
-            LOGGER.warn("Cannot get memory info");
-        }
-        props.add(new DeviceProp("Memory", String.format("%.1f", memSize) + " GB"));
-
-        // acquire storage info
-        info = execCmd("df | grep /storage/emulated");
-        String[] storageInfo = info.split(" +");
-        if (storageInfo.length == 6) {
-            storageSize = Double.parseDouble(storageInfo[1]) / 1024. / 1024.;
-        } else {
-            storageSize = 0;
-            LOGGER.warn("Cannot get storage info");
-        }
-        props.add(new DeviceProp("Storage", Math.round(storageSize) + " GB"));
+    }
 
-        // acquire GPU info
-        info = execCmd("dumpsys SurfaceFlinger | grep OpenGL");
+    private void parseGLInfo(String info) {
         String[] glInfo = info.split(", ");
         if (glInfo.length >= 3 && glInfo[0].contains("GLES")) {
             glVendor = glInfo[0].replace("GLES: ", "");
@@ -203,11 +410,6 @@ public class Device {
             glVersion = "Unknown";
             LOGGER.warn("Cannot get GPU info");
         }
-        props.add(new DeviceProp("GL Vendor", glVendor));
-        props.add(new DeviceProp("GL Renderer", glRenderer));
-        props.add(new DeviceProp("GL Version", glVersion));
-
-        updatePackageList();
     }
 
     /**
@@ -236,11 +438,15 @@ public class Device {
             endPerf();
         }
 
+        // samples of a recording share its time base across restarts, charts start over otherwise
+        MetricRecorder recorder = this.recorder;
+        perfStartTime = recorder != null ? recorder.getStartTime() : System.nanoTime();
         for (var service : services) {
             service.begin();
         }
         hasStartedPerf = true;
-        Platform.runLater(controller::updateUIOnStateChanges);
+        if (controller != null)
+            controller.requestUIUpdate();
     }
 
     /**
@@ -253,7 +459,8 @@ public class Device {
             }
             hasStartedPerf = false;
         }
-        Platform.runLater(controller::updateUIOnStateChanges);
+        if (controller != null)
+            controller.requestUIUpdate();
     }
 
     /**
@@ -264,6 +471,8 @@ public class Device {
         for (var service : services) {
             service.shutdown();
         }
+        closeServerConnection();
+        shellPool.close();
     }
 
     /**
@@ -279,15 +488,23 @@ public class Device {
      * Update the list of all installed packages
      */
     public void updatePackageList() {
+        List<String> info = execBatch(List.of(DISCOVERY_CMDS[PROBE_PACKAGES], DISCOVERY_CMDS[PROBE_PROCESSES]));
+        applyPackageList(info.get(0), info.get(1));
+    }
+
+    /**
+     * Show all packages with the MAIN intent, which indicates that the app can be opened from the launcher.
+     * Running packages come first.
+     *
+     * @param packageInfo output of dumpsys package
+     * @param processInfo output of ps
+     */
+    private void applyPackageList(String packageInfo, String processInfo) {
         ArrayList<String> packages = new ArrayList<>();
         String mainIntent = "      android.intent.action.MAIN:";
         String intent = "      android.intent.action.";
         Pattern namePattern = Pattern.compile(" {8}\\S+ (\\S+)/.+");
 
-        // show all packages with the MAIN intent, which indicates that the app can be opened from the launcher
-        String packageInfo = execCmd("dumpsys package r activity");
-        String processInfo = execCmd("ps -A");
-
         int start = packageInfo.indexOf(mainIntent);
         if (start != -1) {
             int end = packageInfo.indexOf(intent, start + mainIntent.length());
@@ -305,7 +522,10 @@ public class Device {
                 }
             }
         }
-        Platform.runLater(() -> packageList.setAll(packages));
+        if (controller == null)
+            packageList.setAll(packages);
+        else
+            Platform.runLater(() -> packageList.setAll(packages));
     }
 
     /**
@@ -319,93 +539,108 @@ public class Device {
         String[] packageInfo = focusedWindow.split("/");
         String packageName = packageInfo[0];
         if (packageInfo.length == 2 && !packageList.get(0).equals(packageName)) {
-            Platform.runLater(() -> {
+            runLater(() -> {
                 controller.movePackageToFront(packageName);
             });
         }
     }
 
     /**
-     * Update the layer info of the currently selected package
+     * Register a listener notified whenever the layers of the target package change
      *
-     * @return true if the layers have changed
+     * @param listener the listener
      */
-    public synchronized boolean updateLayerList() {
-        ArrayList<Layer> updatedLayerList = new ArrayList<>();
-        String layerListInfo = new String(sendMSG("list"));
+    public void addLayerChangeListener(LayerChangeListener listener) {
+        layerChangeListeners.add(listener);
+    }
+
+    /**
+     * Update the layer info of the currently selected package.
+     * SurfaceFlinger is only dumped again when the layer list changed in a way
+     * that may concern the target package.
+     *
+     * @return the changes of the layers, empty if there is none
+     */
+    public LayerChangeEvent updateLayerList() {
+        return updateLayerList(sendMSG("list"));
+    }
+
+    /**
+     * Update the layer info from a layer list already fetched from the server
+     *
+     * @param listReply reply to the list request, empty to list the layers through dumpsys
+     * @return the changes of the layers, empty if there is none
+     */
+    public synchronized LayerChangeEvent updateLayerList(byte[] listReply) {
+        String layerListInfo = new String(listReply);
         if (layerListInfo.isEmpty())
             layerListInfo = execCmd("dumpsys SurfaceFlinger --list");
         if (layerListInfo.equals(lastLayerInfo))
-            return false;
+            return LayerChangeEvent.EMPTY;
 
         String[] layerListFull = layerListInfo.split("\n");
+        HashSet<String> layerNames = new HashSet<>(Arrays.asList(layerListFull));
+        if (!isLayerListChangeRelevant(layerNames)) {
+            lastLayerInfo = layerListInfo;
+            lastLayerNames = layerNames;
+            return LayerChangeEvent.EMPTY;
+        }
+
         LinkedBlockingDeque<String> layerList = Arrays.stream(layerListFull)
                 .filter(str -> str.contains(targetPackage)).collect(Collectors.toCollection(LinkedBlockingDeque::new));
         if (layerList.isEmpty()) {
-            boolean isChanged = !layers.isEmpty();
-            layers.clear();
-            return isChanged;
+            lastLayerInfo = layerListInfo;
+            lastLayerNames = layerNames;
+            trackedLayerNames = new HashSet<>();
+            return applyLayerList(new ArrayList<>());
         }
 
         String info = execCmd("dumpsys SurfaceFlinger | grep -E '(\\+|\\*).*Layer.*|buffer:.*slot|activeBuffer|parent|z=|pos=|parent=|zOrderRelativeOf='");
+        LayerTree layerTree = LayerTree.parse(info);
 
-        Pattern pattern;
-        Matcher matcher;
-        Matcher bufferMatcher;
+        ArrayList<Layer> updatedLayerList = new ArrayList<>();
+        HashSet<String> visitedNames = new HashSet<>();
+        HashSet<LayerTree.Node> consumedNodes = new HashSet<>();
+        // names that produced no layer are not queued again, which guarantees termination
+        HashSet<String> exhaustedNames = new HashSet<>();
         HashMap<String, Integer> idMap = new HashMap<>();
 
         while (!layerList.isEmpty()) {
             String layerName = layerList.poll();
-            pattern = Pattern.compile(String.format("[*+] .*Layer.*\\((%s.*)\\).*", Pattern.quote(layerName)));
-            matcher = pattern.matcher(info);
-            while (matcher.find()) {
-                int end = matcher.end();
-                int start = matcher.start();
-                String bufferInfo = info.substring(end);
-                Matcher layerMatcher = layerNamePattern.matcher(bufferInfo);
-                if (layerMatcher.find())
-                    bufferInfo = bufferInfo.substring(0, layerMatcher.start());
-                Layer layer;
-                layerList.addAll(findChildrenLayers(layerName, info, layerListFull).stream().filter(i -> !layerList.contains(i)).collect(Collectors.toList()));
+            visitedNames.add(layerName);
+            boolean found = false;
+            boolean childrenQueued = false;
+            for (var node : layerTree.findByName(layerName)) {
+                if (consumedNodes.contains(node))
+                    continue;
+                if (!childrenQueued) {
+                    for (var child : findChildrenLayers(layerName, layerTree, layerNames, layerListFull)) {
+                        if (!layerList.contains(child) && !exhaustedNames.contains(child))
+                            layerList.add(child);
+                    }
+                    childrenQueued = true;
+                }
 
                 // * Layer 0x7615a5469f98 (SurfaceView - com.android.chrome/com.google.android.apps.chrome.Main#0)
                 //      buffer: buffer=0x7615a547b140 slot=2
-                bufferMatcher = bufferStatsPatternR.matcher(bufferInfo);
-                if (bufferMatcher.find()) {
+                if (node.hasBufferSlot)
                     continue;
-                }
 
                 // + Layer 0x7f162ba23000 (StatusBar#0)
                 //      format= 1, activeBuffer=[1440x  84:1440,  1], queued-frames=0, mRefreshPending=0
-                bufferMatcher = bufferSizePattern.matcher(bufferInfo);
-                if (bufferMatcher.find()) {
-                    int w = Integer.parseInt(bufferMatcher.group(1).strip());
-                    int h = Integer.parseInt(bufferMatcher.group(2).strip());
-                    Matcher zMatcher = bufferZOrderPattern.matcher(bufferInfo);
-                    Matcher posMatcher = bufferPosPattern.matcher(bufferInfo);
-                    int x = -1;
-                    int y = -1;
-                    int z = -1;
-                    try {
-                        if (posMatcher.find()) {
-                            x = Integer.parseInt(posMatcher.group(1).strip());
-                            y = Integer.parseInt(posMatcher.group(1).strip());
-                        }
-                        if (zMatcher.find())
-                            z = Integer.parseInt(zMatcher.group(1).strip());
-                    } catch (NumberFormatException e) {
-                        LOGGER.error(bufferInfo + e);
-                    }
-
+                if (node.hasActiveBuffer) {
                     int id = idMap.getOrDefault(layerName, 0);
-                    layer = new Layer(layerName, targetPackage, true, id, w, h, x, y, z);
+                    Layer layer = new Layer(layerName, targetPackage, true, id, node.w, node.h, node.x, node.y, node.z);
                     idMap.put(layerName, id + 1);
 
-                    info = info.replace(info.substring(start, end + bufferInfo.length()), "");
+                    consumedNodes.add(node);
                     updatedLayerList.add(layer);
+                    found = true;
                     break;
                 }
             }
+            if (!found)
+                exhaustedNames.add(layerName);
         }
 
         // check whether a layer is overlapped by other layers and thus invisible to users
@@ -424,52 +659,88 @@ public class Device {
         }
 
         lastLayerInfo = layerListInfo;
-        if (layers.equals(updatedLayerList)) {
-            return false;
-        } else {
-            layers.clear();
-            layers.addAll(updatedLayerList);
+        lastLayerNames = layerNames;
+        trackedLayerNames = visitedNames;
+        return applyLayerList(updatedLayerList);
+    }
+
+    /**
+     * Check whether a new layer list may change the layers of the target package,
+     * i.e., a layer of the package appeared or a layer we are tracking disappeared
+     *
+     * @param layerNames the names of the new layer list
+     * @return false if the change only concerns unrelated layers, such as toasts or overlays of other apps
+     */
+    private boolean isLayerListChangeRelevant(Set<String> layerNames) {
+        if (lastLayerNames == null)
             return true;
+        for (String name : layerNames) {
+            if (!lastLayerNames.contains(name) && name.contains(targetPackage))
+                return true;
+        }
+        for (String name : trackedLayerNames) {
+            if (!layerNames.contains(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replace the current layers and notify the listeners of the changes
+     *
+     * @param updatedLayerList the new layers, unchanged ones are swapped for their previous instances
+     * @return the changes
+     */
+    private LayerChangeEvent applyLayerList(ArrayList<Layer> updatedLayerList) {
+        LayerChangeEvent event = LayerChangeEvent.diff(layers, updatedLayerList);
+        if (event.isEmpty())
+            return event;
+        layers.clear();
+        layers.addAll(updatedLayerList);
+        LOGGER.debug(event);
+        for (var listener : layerChangeListeners) {
+            listener.onLayersChanged(event);
         }
+        return event;
     }
 
     /**
-     * Reconstruct the layer dependency from the layer info
-     * and extract all the children layers for a parent layer,
+     * Extract all the children layers for a parent layer from the layer tree,
      * so that we can extract overlay layers
      *
      * @param parent        the parent layer
-     * @param info          the layer info
+     * @param layerTree     the layer tree
+     * @param layerNames    the full layer list, for exact name lookups
      * @param layerListFull the full layer list
      * @return the children layer
      */
-    private ArrayList<String> findChildrenLayers(String parent, String info, String[] layerListFull) {
-        Pattern parentPattern = Pattern.compile(String.format("parent=(%s)", Pattern.quote(parent)));
-        Matcher matcher = parentPattern.matcher(info);
+    private ArrayList<String> findChildrenLayers(String parent, LayerTree layerTree, Set<String> layerNames, String[] layerListFull) {
         ArrayList<String> children = new ArrayList<>();
-        while (matcher.find()) {
-            String layerInfo = info.substring(0, matcher.start());
-            Matcher layerMatcher;
-            layerMatcher = layerNamePattern.matcher(layerInfo);
-            List<String> matches = layerMatcher.results().map((r) -> layerInfo.substring(r.start(), r.end())).collect(Collectors.toList());
-            String name = matches.get(matches.size() - 1);
-            if (name != null) {
-                Pattern pattern;
-                Matcher nameMatcher;
-                for (var layerName : layerListFull) {
-                    pattern = Pattern.compile(String.format("[*+] .*Layer.*\\((%s.*)\\).*", Pattern.quote(layerName)));
-                    nameMatcher = pattern.matcher(name);
-                    if (nameMatcher.find()) {
-                        children.add(layerName);
-                        break;
-                    }
+        for (var child : layerTree.findChildren(parent)) {
+            if (layerNames.contains(child.name)) {
+                children.add(child.name);
+                continue;
+            }
+            // older SurfaceFlinger versions list layers without the sequence suffix of the dump
+            for (var layerName : layerListFull) {
+                if (child.name.startsWith(layerName)) {
+                    children.add(layerName);
+                    break;
                 }
             }
         }
         return children;
     }
 
+    /**
+     * Check whether the device is connected, from the tracked device states if possible
+     *
+     * @return true if the device is online
+     */
     public boolean isDeviceAlive() {
+        JadbDevice.State state = DeviceRegistry.getInstance().getState(deviceADBID);
+        if (state != null)
+            return state == JadbDevice.State.Device;
         try {
             return jadbDevice.getState() == JadbDevice.State.Device;
         } catch (IOException | JadbException ex) {
@@ -478,13 +749,64 @@ public class Device {
     }
 
     /**
-     * Execute ADB command
+     * Execute ADB command, over a pooled shell session when the device supports it
      *
      * @param cmd  command
      * @param args command arguments
      * @return execution results
      */
     public String execCmd(String cmd, String... args) {
+        StringBuilder cmdLine = new StringBuilder(cmd);
+        for (String arg : args)
+            cmdLine.append(' ').append(Bash.quote(arg));
+        List<String> outputs = shellPool.execBatch(List.of(cmdLine.toString()), null);
+        if (outputs != null && !outputs.isEmpty())
+            return outputs.get(0).strip();
+        return execCmdOnce(cmd, args);
+    }
+
+    /**
+     * Execute several ADB commands in one round trip
+     *
+     * @param cmds commands
+     * @return execution results, in the order of the commands
+     */
+    public List<String> execBatch(List<String> cmds) {
+        return execBatch(cmds, null);
+    }
+
+    /**
+     * Execute several ADB commands in one round trip, handing out each result as soon as it arrives
+     *
+     * @param cmds     commands
+     * @param onResult called with the index and result of each command, may be null
+     * @return execution results, in the order of the commands
+     */
+    public List<String> execBatch(List<String> cmds, BiConsumer<Integer, String> onResult) {
+        List<String> outputs = shellPool.execBatch(cmds, onResult);
+        ArrayList<String> results = new ArrayList<>(cmds.size());
+        if (outputs != null) {
+            for (String output : outputs)
+                results.add(output.strip());
+        }
+        // the commands a session did not complete run one by one, those it completed are neither run nor handed out again
+        for (int i = results.size(); i < cmds.size(); i++) {
+            String result = execCmdOnce(cmds.get(i));
+            results.add(result);
+            if (onResult != null)
+                onResult.accept(i, result);
+        }
+        return results;
+    }
+
+    /**
+     * Execute ADB command over a transport of its own, used for commands that must not occupy a shell session
+     *
+     * @param cmd  command
+     * @param args command arguments
+     * @return execution results
+     */
+    private String execCmdOnce(String cmd, String... args) {
         try (InputStream stream = jadbDevice.execute(cmd, args)) {
             return new String(stream.readAllBytes()).strip();
         } catch (IOException | JadbException e) {
@@ -500,26 +822,115 @@ public class Device {
      * @return true if success
      */
     private boolean setupForward() {
-        // forward port to unix abstract socket
-        localPort = findFreePort();
-        if (localPort < 0) {
-            LOGGER.error("Failed to find available ports");
-            return false;
+        synchronized (serverLock) {
+            // sockets of the previous forward are useless from now on
+            closeServerConnection();
+
+            // forward port to unix abstract socket
+            int localPort = findFreePort();
+            if (localPort < 0) {
+                LOGGER.error("Failed to find available ports");
+                return false;
+            }
+            try {
+                jadbDevice.clearForward();
+                jadbDevice.forward(ForwardType.TCP, String.valueOf(localPort), ForwardType.LOCAL, UNIX_SOCKET);
+            } catch (IOException | JadbException e) {
+                LOGGER.error("Failed to forward local port", e);
+                return false;
+            }
+            serverConnection = new ServerConnection(localPort);
+            return true;
+        }
+    }
+
+    /**
+     * Get the connection to the server, setting up the port forwarding on first use
+     *
+     * @return the connection, or null if forwarding failed
+     */
+    private ServerConnection getServerConnection() {
+        ServerConnection connection = serverConnection;
+        if (connection != null)
+            return connection;
+        synchronized (serverLock) {
+            if (serverConnection == null && !setupForward())
+                return null;
+            return serverConnection;
+        }
+    }
+
+    private void closeServerConnection() {
+        synchronized (serverLock) {
+            if (serverConnection != null) {
+                serverConnection.close();
+                serverConnection = null;
+            }
         }
+    }
+
+    /**
+     * Compare the files with their counterparts on the device by MD5, with a single md5sum call
+     *
+     * @param files remote counterpart by local file
+     * @return the files missing or different on the device, all of them if the device cannot tell
+     */
+    private Map<File, RemoteFile> changedFiles(Map<File, RemoteFile> files) throws IOException {
+        StringBuilder cmd = new StringBuilder("md5sum");
+        for (var remote : files.values())
+            cmd.append(' ').append(Bash.quote(remote.getPath()));
+        // missing files are reported on stderr and simply have no line
+        String reply = execCmd(cmd + " 2>/dev/null");
+        HashMap<String, String> remoteDigests = new HashMap<>();
+        for (String line : reply.split("\n")) {
+            String[] parts = line.strip().split("\\s+", 2);
+            if (parts.length == 2 && parts[0].matches("[0-9a-f]{32}"))
+                remoteDigests.put(parts[1], parts[0]);
+        }
+        LinkedHashMap<File, RemoteFile> changed = new LinkedHashMap<>();
+        for (var entry : files.entrySet()) {
+            if (!localDigest(entry.getKey()).equals(remoteDigests.get(entry.getValue().getPath())))
+                changed.put(entry.getKey(), entry.getValue());
+        }
+        return changed;
+    }
+
+    /**
+     * @return the MD5 of a local file in hex, computed again only if the file changed
+     */
+    private static String localDigest(File file) throws IOException {
+        String key = String.format("%s:%d:%d", file.getAbsolutePath(), file.lastModified(), file.length());
         try {
-            jadbDevice.clearForward();
-            jadbDevice.forward(ForwardType.TCP, String.valueOf(localPort), ForwardType.LOCAL, UNIX_SOCKET);
-        } catch (IOException | JadbException e) {
-            LOGGER.error("Failed to forward local port", e);
-            return false;
+            return LOCAL_DIGESTS.computeIfAbsent(key, k -> {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    MessageDigest digest = MessageDigest.getInstance("MD5");
+                    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                    while (channel.read(buffer) != -1) {
+                        buffer.flip();
+                        digest.update(buffer);
+                        buffer.clear();
+                    }
+                    StringBuilder hex = new StringBuilder();
+                    for (byte b : digest.digest())
+                        hex.append(String.format("%02x", b));
+                    return hex.toString();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return true;
     }
 
     /**
      * Push the server executable to device, grant permissions and start the server
      */
     public boolean startServer() {
+        // the server executable is picked by the ABI of the device
+        awaitDiscovery();
         if (!setupForward())
             return false;
         if (!isServerRunning()) {
@@ -536,26 +947,32 @@ public class Device {
                 abi = abiList.contains("x86_64") ? "x86_64" :
                         (abiList.contains("x86") ? "x86" :
                                 (abiList.contains("arm64-v8a") ? "arm64-v8a" : abi));
-                jadbDevice.push(new File(String.format("android/%s/%s", abi, SERVER_EXECUTABLE)), new RemoteFile(String.format("%s/%s", SERVER_PATH_BASE, SERVER_EXECUTABLE)));
-                jadbDevice.push(new File(String.format("android/%s", SERVER_FW_EXECUTABLE)), new RemoteFile(String.format("%s/%s", SERVER_PATH_BASE, SERVER_FW_EXECUTABLE)));
-                jadbDevice.push(new File(String.format("android/%s.dex", SERVER_FW_EXECUTABLE)), new RemoteFile(String.format("%s/%s.dex", SERVER_PATH_BASE, SERVER_FW_EXECUTABLE)));
+                LinkedHashMap<File, RemoteFile> files = new LinkedHashMap<>();
+                files.put(new File(String.format("android/%s/%s", abi, SERVER_EXECUTABLE)), new RemoteFile(String.format("%s/%s", SERVER_PATH_BASE, SERVER_EXECUTABLE)));
+                files.put(new File(String.format("android/%s", SERVER_FW_EXECUTABLE)), new RemoteFile(String.format("%s/%s", SERVER_PATH_BASE, SERVER_FW_EXECUTABLE)));
+                files.put(new File(String.format("android/%s.dex", SERVER_FW_EXECUTABLE)), new RemoteFile(String.format("%s/%s.dex", SERVER_PATH_BASE, SERVER_FW_EXECUTABLE)));
+                // only files the device does not hold yet are pushed, at once, each over its own connection
+                Map<File, RemoteFile> changed = changedFiles(files);
+                if (!changed.isEmpty()) {
+                    LOGGER.debug(String.format("Pushing %d server files to %s", changed.size(), deviceADBID));
+                    jadbDevice.pushAll(changed);
+                }
             } catch (IOException | JadbException e) {
                 LOGGER.error("Failed to push server to device", e);
                 return false;
             }
 
-            // grant permissions
-            String reply = execCmd(String.format("chmod 777 %s/%s", SERVER_PATH_BASE, SERVER_EXECUTABLE));
-            String replyFW = execCmd(String.format("chmod 777 %s/%s", SERVER_PATH_BASE, SERVER_FW_EXECUTABLE));
-            if (reply.contains("Error") || replyFW.contains("Error")) {
+            // grant permissions, also to files that were there already in case an earlier attempt stopped short
+            String reply = execCmd(String.format("chmod 777 %1$s/%2$s %1$s/%3$s", SERVER_PATH_BASE, SERVER_EXECUTABLE, SERVER_FW_EXECUTABLE));
+            if (reply.contains("Error")) {
                 LOGGER.error("Failed to chmod");
                 return false;
             }
 
             long start = System.currentTimeMillis();
             while (true) {
-                // start the server
-                execCmd(String.format("%s/%s", SERVER_PATH_BASE, SERVER_EXECUTABLE));
+                // start the server, it keeps running so it gets a transport of its own
+                execCmdOnce(String.format("%s/%s", SERVER_PATH_BASE, SERVER_EXECUTABLE));
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException e) {
@@ -575,7 +992,7 @@ public class Device {
                 LOGGER.error("Failed to PING server");
                 return false;
             }
-            replyFW = new String(sendMSG("PING_FW"));
+            String replyFW = new String(sendMSG("PING_FW"));
             start = System.currentTimeMillis();
             while (!replyFW.contains("OKAY")) {
                 replyFW = new String(sendMSG("PING_FW"));
@@ -594,6 +1011,7 @@ public class Device {
     }
 
     private void killServer() {
+        closeServerConnection();
         String processInfo = execCmd("pidof " + SERVER_EXECUTABLE);
         if (processInfo != null && !processInfo.isEmpty()) {
             String[] pids = processInfo.split(" ");
@@ -655,52 +1073,64 @@ public class Device {
     }
 
     /**
-     * Send data to the server and acquire reply
+     * Send data to the server and acquire reply.
+     * Safe to call from several threads, requests are then in flight concurrently.
      *
      * @param data data to be sent
      * @return reply message
      */
-    public synchronized byte[] sendMSG(String data) {
+    public byte[] sendMSG(String data) {
+        ServerConnection connection = getServerConnection();
+        if (connection == null)
+            return new byte[0];
         try {
-            if (localPort < 0 && !setupForward())
-                return new byte[0];
-            Socket localSocket = new Socket(InetAddress.getLoopbackAddress(), localPort);
-            localSocket.setSoTimeout(5000);
-            DataOutputStream outputStream = new DataOutputStream(localSocket.getOutputStream());
-            data += MSG_END;
-            outputStream.write(data.getBytes());
-            outputStream.flush();
-
-            DataInputStream inputStream = new DataInputStream(localSocket.getInputStream());
-            byte[] buffer = new byte[1024];
-            ArrayList<Byte> msgEndBytes = new ArrayList<>(Arrays.asList(ArrayUtils.toObject(MSG_END.getBytes())));
-            ArrayList<Byte> replyBuffer = new ArrayList<>();
-            int len;
-            int msgEnd;
-            while (true) {
-                len = inputStream.read(buffer);
-                if (len > 0) {
-                    replyBuffer.addAll(Arrays.asList(ArrayUtils.toObject(buffer)).subList(0, len));
-                }
-                msgEnd = Collections.indexOfSubList(replyBuffer, msgEndBytes);
-                if (msgEnd != -1) {
-                    localSocket.close();
-                    Byte[] reply = replyBuffer.subList(0, msgEnd).toArray(new Byte[msgEnd]);
-                    return ArrayUtils.toPrimitive(reply);
-                }
-                if (len == -1) {
-                    localSocket.close();
-                    return new byte[0];
-                }
-            }
+            return connection.request(data);
         } catch (IOException e) {
+            recoverServer(e);
+            return new byte[0];
+        }
+    }
+
+    private void recoverServer(IOException e) {
+        // only the first failing request recovers the server, concurrent ones just give up
+        if (!isRecoveringServer.compareAndSet(false, true))
+            return;
+        try {
             LOGGER.error("Failed to send data to server, restarting...", e);
             if (!isDeviceAlive())
                 endPerf();
             else
                 restartServer();
-            return new byte[0];
+        } finally {
+            isRecoveringServer.set(false);
+        }
+    }
+
+    /**
+     * Send several requests to the server at once, pipelined on one socket if the server allows,
+     * otherwise all of them in flight concurrently
+     *
+     * @param requests requests to be sent
+     * @return reply of each request, empty where it failed
+     */
+    public List<byte[]> sendMSGs(List<String> requests) {
+        if (requests.size() <= 1)
+            return requests.stream().map(this::sendMSG).collect(Collectors.toList());
+        ServerConnection connection = getServerConnection();
+        if (connection == null)
+            return requests.stream().map(request -> new byte[0]).collect(Collectors.toList());
+        try {
+            List<byte[]> replies = connection.requestPipelined(requests);
+            if (replies != null)
+                return replies;
+        } catch (IOException e) {
+            recoverServer(e);
+            return requests.stream().map(request -> new byte[0]).collect(Collectors.toList());
         }
+        ArrayList<CompletableFuture<byte[]>> replies = new ArrayList<>(requests.size());
+        for (String request : requests)
+            replies.add(CompletableFuture.supplyAsync(() -> sendMSG(request), REQUEST_EXECUTOR));
+        return replies.stream().map(CompletableFuture::join).collect(Collectors.toList());
     }
 
     /**
@@ -710,7 +1140,12 @@ public class Device {
      */
     public void setTargetPackage(String packageName) {
         endPerf();
-        targetPackage = packageName;
+        synchronized (this) {
+            targetPackage = packageName;
+            // the cached layer list says nothing about the new package
+            lastLayerInfo = "";
+            lastLayerNames = null;
+        }
         String uidInfo = execCmd(String.format("dumpsys package %s | grep userId", packageName));
         uidInfo = uidInfo.split("\\n")[0].strip();
         if (uidInfo.contains("userId=")) {
@@ -739,6 +1174,32 @@ public class Device {
         return controller;
     }
 
+    /**
+     * Show a sample in the charts, if the device has a UI
+     */
+    void showSample(Sample sample) {
+        if (controller != null)
+            controller.postSample(sample);
+    }
+
+    /**
+     * @return the recorder samples are written to, or null if they are not recorded
+     */
+    MetricRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} the times of samples count from, shared by all services
+     */
+    long getPerfStartTime() {
+        return perfStartTime;
+    }
+
+    void setRecorder(MetricRecorder recorder) {
+        this.recorder = recorder;
+    }
+
     public int getSdkVersion() {
         return sdkVersion;
     }
@@ -795,7 +1256,7 @@ public class Device {
         return packageList;
     }
 
-    public ArrayList<DeviceProp> getProps() {
+    public ObservableList<DeviceProp> getProps() {
         return props;
     }
 }
@@ -0,0 +1,83 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Static properties of devices stored under the user's home directory, one file per device.
+ * A profile is only valid for the build it was probed on, so it is keyed by the build fingerprint as well,
+ * and reconnecting a known device costs a single getprop instead of a full discovery.
+ */
+class DeviceProfileCache {
+    private static final Logger LOGGER = LogManager.getLogger(DeviceProfileCache.class);
+    private static final Path CACHE_DIR = Paths.get(System.getProperty("user.home"), ".androidperf", "profiles");
+    private static final String FINGERPRINT = "fingerprint";
+
+    private DeviceProfileCache() {
+    }
+
+    /**
+     * Load the profile of a device
+     *
+     * @param serial      serial of the device
+     * @param fingerprint build fingerprint the device reports now
+     * @return the profile, or null if there is none for this build
+     */
+    static Properties load(String serial, String fingerprint) {
+        if (fingerprint == null || fingerprint.isEmpty())
+            return null;
+        Path file = getProfilePath(serial);
+        if (!Files.isRegularFile(file))
+            return null;
+        Properties profile = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            profile.load(reader);
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warn("Cannot read device profile " + file, e);
+            return null;
+        }
+        if (!fingerprint.equals(profile.getProperty(FINGERPRINT)))
+            return null;
+        return profile;
+    }
+
+    /**
+     * Store the profile of a device, replacing the one of any previous build
+     *
+     * @param serial      serial of the device
+     * @param fingerprint build fingerprint the profile was probed on
+     * @param profile     static properties of the device
+     */
+    static void store(String serial, String fingerprint, Properties profile) {
+        if (fingerprint == null || fingerprint.isEmpty())
+            return;
+        Path file = getProfilePath(serial);
+        Properties content = new Properties();
+        content.putAll(profile);
+        content.setProperty(FINGERPRINT, fingerprint);
+        try {
+            Files.createDirectories(CACHE_DIR);
+            // write aside and move, so a concurrent reader never sees a partial profile
+            Path tmp = Files.createTempFile(CACHE_DIR, "profile", ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                content.store(writer, null);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write device profile " + file, e);
+        }
+    }
+
+    private static Path getProfilePath(String serial) {
+        // serials of network devices look like host:port
+        return CACHE_DIR.resolve(serial.replaceAll("[^A-Za-z0-9._-]", "_") + ".properties");
+    }
+}
@@ -0,0 +1,225 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import se.vidstige.jadb.DeviceDetectionListener;
+import se.vidstige.jadb.DeviceWatcher;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Connected devices as pushed by the adb server over host:track-devices.
+ * Bursts of updates, such as a device flapping while it is plugged in, are debounced,
+ * and the watch is re-established with a backoff whenever the adb server goes away.
+ * Device states are cached, so checking whether a device is alive needs no adb round trip.
+ */
+class DeviceRegistry {
+    private static final Logger LOGGER = LogManager.getLogger(DeviceRegistry.class);
+    private static final long DEBOUNCE_DELAY = 300;
+    private static final long MIN_RECONNECT_DELAY = 500;
+    private static final long MAX_RECONNECT_DELAY = 10000;
+    private static final DeviceRegistry INSTANCE = new DeviceRegistry();
+
+    /**
+     * Notified on the registry thread whenever a device is added or removed
+     */
+    interface Listener {
+        void onDeviceAdded(Device device);
+
+        void onDeviceRemoved(Device device);
+    }
+
+    private final ConcurrentHashMap<String, JadbDevice.State> states = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Device> devices = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "device-registry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Function<JadbDevice, Device> deviceFactory = null;
+    private Listener listener = null;
+    private DeviceWatcher watcher = null;
+    private ScheduledFuture<?> pendingUpdate = null;
+    // true while the watch is established, cached states are authoritative then
+    private volatile boolean tracking = false;
+    private volatile boolean stopped = false;
+
+    private DeviceRegistry() {
+    }
+
+    static DeviceRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start tracking devices
+     *
+     * @param deviceFactory creates a device once it is connected and authorized
+     * @param listener      notified of added and removed devices
+     */
+    void start(Function<JadbDevice, Device> deviceFactory, Listener listener) {
+        executor.execute(() -> {
+            this.deviceFactory = deviceFactory;
+            this.listener = listener;
+        });
+        Thread thread = new Thread(this::watch, "device-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Keep a watch on the adb server, reconnecting with an exponential backoff
+     */
+    private void watch() {
+        long delay = MIN_RECONNECT_DELAY;
+        while (!stopped) {
+            DeviceWatcher deviceWatcher = null;
+            try {
+                deviceWatcher = Device.connection.createDeviceWatcher(new DeviceDetectionListener() {
+                    @Override
+                    public void onDetect(List<JadbDevice> detected) {
+                        // states are current before they are trusted, only adding and removing devices is debounced
+                        updateStates(detected);
+                        tracking = true;
+                        scheduleUpdate(detected);
+                    }
+
+                    @Override
+                    public void onException(Exception e) {
+                        LOGGER.warn("Lost device tracking", e);
+                    }
+                });
+                synchronized (this) {
+                    watcher = deviceWatcher;
+                }
+                if (stopped)
+                    return;
+                delay = MIN_RECONNECT_DELAY;
+                deviceWatcher.run();
+            } catch (IOException | JadbException e) {
+                LOGGER.debug("Cannot track devices, is the adb server running?", e);
+            } finally {
+                // the watch may have ended upon an error with its transport still open
+                if (deviceWatcher != null)
+                    stopWatcher(deviceWatcher);
+            }
+            tracking = false;
+            if (stopped)
+                return;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+        }
+    }
+
+    private synchronized void scheduleUpdate(List<JadbDevice> detected) {
+        if (pendingUpdate != null)
+            pendingUpdate.cancel(false);
+        pendingUpdate = executor.schedule(() -> apply(detected), DEBOUNCE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Poll the device list once, used when the user asks for a refresh
+     */
+    void refresh() {
+        executor.execute(() -> {
+            try {
+                List<JadbDevice> detected = Device.connection.getDevices();
+                updateStates(detected);
+                apply(detected);
+            } catch (IOException | JadbException e) {
+                LOGGER.error("Cannot get device list");
+            }
+        });
+    }
+
+    /**
+     * Cache the states of a device list
+     */
+    private synchronized void updateStates(List<JadbDevice> detected) {
+        HashSet<String> seen = new HashSet<>();
+        for (var adbDevice : detected) {
+            seen.add(adbDevice.getSerial());
+            states.put(adbDevice.getSerial(), stateOf(adbDevice));
+        }
+        states.keySet().retainAll(seen);
+    }
+
+    private static JadbDevice.State stateOf(JadbDevice adbDevice) {
+        JadbDevice.State state = adbDevice.getDetectedState();
+        return state == null ? JadbDevice.State.Unknown : state;
+    }
+
+    /**
+     * Bring the registry in line with a device list, creating and tearing down devices as needed
+     */
+    private void apply(List<JadbDevice> detected) {
+        if (stopped || deviceFactory == null)
+            return;
+        HashMap<String, JadbDevice> online = new HashMap<>();
+        for (var adbDevice : detected) {
+            if (stateOf(adbDevice) == JadbDevice.State.Device)
+                online.put(adbDevice.getSerial(), adbDevice);
+        }
+
+        for (var entry : new ArrayList<>(devices.entrySet())) {
+            if (!online.containsKey(entry.getKey())) {
+                devices.remove(entry.getKey());
+                entry.getValue().shutdown();
+                listener.onDeviceRemoved(entry.getValue());
+            }
+        }
+        for (var entry : online.entrySet()) {
+            if (!devices.containsKey(entry.getKey())) {
+                Device device = deviceFactory.apply(entry.getValue());
+                devices.put(entry.getKey(), device);
+                listener.onDeviceAdded(device);
+            }
+        }
+    }
+
+    /**
+     * @return the cached state of a device, Offline if the adb server does not list it,
+     * or null if devices are not being tracked right now
+     */
+    JadbDevice.State getState(String serial) {
+        if (!tracking)
+            return null;
+        return states.getOrDefault(serial, JadbDevice.State.Offline);
+    }
+
+    /**
+     * Close the transport of a watcher unless that was done already
+     */
+    private synchronized void stopWatcher(DeviceWatcher deviceWatcher) {
+        if (watcher != deviceWatcher)
+            return;
+        watcher = null;
+        try {
+            deviceWatcher.stop();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Stop tracking and shut down all devices, used upon app close
+     */
+    void stop() {
+        stopped = true;
+        synchronized (this) {
+            if (watcher != null)
+                stopWatcher(watcher);
+        }
+        executor.shutdownNow();
+        devices.values().forEach(Device::shutdown);
+        devices.clear();
+    }
+}
@@ -1,220 +1,371 @@
 package com.android.androidperf;
 
-import javafx.application.Platform;
-import javafx.scene.chart.XYChart;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.ArrayList;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-public class FPSPerfService extends BasePerfService {
+public class FPSPerfService extends BasePerfService implements LayerChangeListener {
     private static final Logger LOGGER = LogManager.getLogger(FPSPerfService.class);
-    private long lastFrameTimestamp = 0;
-    Layer targetLayer = null;
-    boolean targetShouldChange = true;
+    static final String CHART = "FPS";
+    static final String[] SERIES = {"FPS"};
+    // FPS of every active layer, frame time statistics of the session and frame pacing of the target,
+    // recorded but not charted
+    static final String LAYER_CHART = "LayerFPS";
+    static final String FRAME_TIME_CHART = "FrameTime";
+    static final String[] FRAME_TIME_SERIES = {"p50", "p90", "p99", "max", "jank", "bigJank", "pauses"};
+    static final String PACING_CHART = "FramePacing";
+    static final String[] PACING_SERIES = {"latency", "maxLatency", "missedVsync", "jitter", "maxJitter", "lateFrames"};
+    // assumed if the latency reply does not hold the refresh period
+    private static final long DEFAULT_REFRESH_PERIOD = 16_666_667;
 
-    Future<?> updateLayerTask = null;
+    /**
+     * Frame state of one visible layer, all of them are sampled at once
+     */
+    private static class LayerTrack {
+        // the latest instance of the layer, its geometry may change while it is tracked
+        Layer layer;
+        final FrameTimeline timeline = new FrameTimeline();
+        final FramePacing pacing = new FramePacing();
+        final FrameTimeHistogram histogram;
+        final FrameTimeHistogram session;
+        long lastFrameTimestamp = 0;
+        long lastPresentTime = 0;
+        // set when a whole sample brought no frame, the layer may have been at rest since
+        boolean idle = false;
+        double fps = 0;
+        int frameCount = 0;
+        boolean active = false;
+
+        LayerTrack(Layer layer, FrameTimeHistogram histogram, FrameTimeHistogram session) {
+            this.layer = layer;
+            this.histogram = histogram;
+            this.session = session;
+        }
+
+        /**
+         * Work out the FPS, frame times and pacing of the frames presented since the last sample
+         *
+         * @param activeFrameThreshold frames the layer must have produced to count as active
+         */
+        void sample(int activeFrameThreshold) {
+            int size = timeline.size();
+            int i = timeline.indexAfter(lastFrameTimestamp);
+            frameCount = 0;
+            double totalTime = 0;
+            long preceding = lastFrameTimestamp;
+            if (i < size) {
+                lastFrameTimestamp = timeline.last();
+                if (i != size - 1) {
+                    for (; i < size; i++) {
+                        long timestamp = timeline.get(i);
+                        if (preceding == 0) {
+                            preceding = timestamp;
+                            continue;
+                        }
+                        totalTime += ((double) timestamp - preceding) / 1e6;
+                        preceding = timestamp;
+                        frameCount++;
+                    }
+                }
+            }
+            fps = totalTime != 0 ? frameCount / totalTime * 1000 : 0;
+            active = frameCount >= activeFrameThreshold && fps >= 1;
+
+            long vsyncPeriod = timeline.getRefreshPeriod() > 0 ? timeline.getRefreshPeriod() : DEFAULT_REFRESH_PERIOD;
+            pacing.startSample();
+            int frames = timeline.frameCount();
+            boolean presented = false;
+            for (i = timeline.indexAfter(lastPresentTime); i < frames; i++) {
+                long presentTime = timeline.get(i);
+                if (presentTime <= lastPresentTime)
+                    continue;
+                if (lastPresentTime > 0) {
+                    long frameTime = presentTime - lastPresentTime;
+                    // a stall is a frame however long, only a layer that stopped drawing for a while was at rest
+                    if (idle && frameTime >= FrameTimeHistogram.MIN_PAUSE) {
+                        histogram.recordPause();
+                        session.recordPause();
+                        pacing.reset();
+                    } else {
+                        histogram.record(frameTime, vsyncPeriod);
+                        session.record(frameTime, vsyncPeriod);
+                    }
+                }
+                pacing.addFrame(timeline.getDesiredPresentTime(i), presentTime, timeline.getFrameReadyTime(i), vsyncPeriod);
+                lastPresentTime = presentTime;
+                idle = false;
+                presented = true;
+            }
+            if (!presented)
+                idle = true;
+        }
+    }
+
+    // visible layers of the target package, tracked all at once
+    private final LinkedHashMap<String, LayerTrack> tracks = new LinkedHashMap<>();
+    // set when the tracks must be rebuilt from all layers of the device
+    private volatile boolean tracksStale = true;
+    // layer changes not yet applied to the tracks, they are applied on the sampling thread
+    private final ConcurrentLinkedQueue<LayerChangeEvent> layerChanges = new ConcurrentLinkedQueue<>();
+    private LayerTrack target = null;
+    // tracks whose latency was requested with the batch of the current tick, and the replies
+    private ArrayList<LayerTrack> pendingTracks = null;
+    private List<ServerBatch.Reply> pendingReplies = null;
+    private ServerBatch.Reply pendingLayerList = null;
+    // frame times of the session by track key, and of all layers
+    private final ConcurrentHashMap<String, FrameTimeHistogram> layerHistograms = new ConcurrentHashMap<>();
+    private volatile FrameTimeHistogram sessionHistogram = new FrameTimeHistogram();
+
+    SamplingScheduler.Task updateLayerTask = null;
 
     void clearLatencyData() {
         var layers = new ArrayList<>(device.getLayers());
         layers.forEach(layer -> device.execCmd(String.format("dumpsys SurfaceFlinger --latency-clear '%s'", layer.layerName)));
     }
 
-    ArrayList<Long> acquireLatencyData(Layer layer) {
-        if (layer == null)
-            return new ArrayList<>();
-        String latencyData;
-
-        latencyData = new String(device.sendMSG(String.format("latency %s", layer.layerName)));
-        if (latencyData.isEmpty()) {
-            LOGGER.error("server is down");
-            latencyData = device.execCmd(String.format("dumpsys SurfaceFlinger --latency '%s'", layer.layerName));
+    /**
+     * Fetch the latency data of all tracked layers, the requests are in flight at the same time
+     *
+     * @param replies replies already received with the batch of the tick, or null to request them now
+     */
+    private void acquireLatencyData(ArrayList<LayerTrack> layerTracks, List<ServerBatch.Reply> replies) {
+        if (replies == null) {
+            ServerBatch batch = new ServerBatch(device);
+            replies = addLatencyRequests(batch, layerTracks);
+            batch.send();
         }
-
-        if (latencyData.isEmpty())
-            return new ArrayList<>();
-
-        // Data look like [desiredPresentTime] [actualPresentTime] [frameReadyTime]
-        // All timestamps are in nanoseconds. We use actualPresentTime to calculate frame time
-        latencyData = latencyData.replace("\r\n", "\n");
-        long padding = 0;
-        int paddingIndex = latencyData.indexOf("PADDING");
-        if (paddingIndex >= 0) {
-            String paddingStr = latencyData.substring(paddingIndex);
-            String[] paddingInfo = paddingStr.split("\\s");
-            if (paddingInfo.length >= 2) {
-                try {
-                    padding = Long.parseLong(paddingInfo[1]);
-                } catch (NumberFormatException ignored) {}
+        for (int i = 0; i < layerTracks.size(); i++) {
+            LayerTrack track = layerTracks.get(i);
+            byte[] latencyData = replies.get(i).get();
+            if (latencyData.length == 0) {
+                LOGGER.error("server is down");
+                latencyData = device.execCmd(String.format("dumpsys SurfaceFlinger --latency '%s'", track.layer.layerName)).getBytes();
             }
+            track.timeline.parse(latencyData, track.layer.id);
         }
-        String[] dataLines = latencyData.split("\n\n");
-        if (dataLines.length > 1) {
-            if (layer.id >= dataLines.length)
-                return new ArrayList<>();
-            latencyData = dataLines[layer.id];
-        }
-        dataLines = latencyData.split("\n");
-        var results = new ArrayList<Long>();
-
-        for (int i = 1; i < dataLines.length; i++) {
-            if (dataLines[i].length() == 0)
-                break;
-            String frameData = dataLines[i];
-            String[] frameTimestamps = frameData.split("\\s");
-            try {
-                long actualPresentTime = Long.parseLong(frameTimestamps[1]);
-                if (actualPresentTime == Long.MAX_VALUE)
-                    continue;
-                results.add(actualPresentTime);
-            } catch (Exception ignored) {
-            }
+    }
+
+    private static List<ServerBatch.Reply> addLatencyRequests(ServerBatch batch, ArrayList<LayerTrack> layerTracks) {
+        ArrayList<ServerBatch.Reply> replies = new ArrayList<>(layerTracks.size());
+        for (var track : layerTracks)
+            replies.add(batch.add(String.format("latency %s", track.layer.layerName)));
+        return replies;
+    }
+
+    /**
+     * A layer is active if it produced at least five frames per second,
+     * scaled to the current sampling period
+     *
+     * @return the number of new frames an active layer must have produced since the last sample
+     */
+    private int activeFrameThreshold() {
+        long period = updateTask == null ? 1000 : updateTask.getPeriod();
+        return (int) Math.max(2, Math.min(5, Math.ceil(5 * period / 1000.)));
+    }
+
+    private static String trackKey(Layer layer) {
+        return layer.id + ":" + layer.layerName;
+    }
+
+    /**
+     * Bring the tracks in line with the layers: rebuilt from all visible layers when a session begins,
+     * else only the layers of the pending changes are added, updated or dropped
+     */
+    private void syncTracks() {
+        if (tracksStale) {
+            tracksStale = false;
+            layerChanges.clear();
+            tracks.clear();
+            for (var layer : new ArrayList<>(device.getLayers()))
+                updateTrack(layer);
         }
-        if (!results.isEmpty()) {
-            long last = results.get(results.size() - 1);
-            if (last != 0)
-                results.add(padding);
+        LayerChangeEvent event;
+        while ((event = layerChanges.poll()) != null) {
+            for (var layer : event.getRemoved())
+                tracks.remove(trackKey(layer));
+            for (var layer : event.getChanged())
+                updateTrack(layer);
+            for (var layer : event.getAdded())
+                updateTrack(layer);
         }
-
-        return results;
+        if (target != null && !tracks.containsValue(target))
+            target = null;
     }
 
     /**
-     * Check if the layer is active, i.e., if it's producing frames
-     * @param frameResults the layer's frame latency data
-     * @return true if it's active
+     * Track a visible layer, keeping the state of its track if there is one, and drop the track of a hidden layer
      */
-    boolean isLayerActive(ArrayList<Long> frameResults) {
-        // frame result is empty
-        if (frameResults.isEmpty())
-            return false;
-        // frame result contains only 0
-        if (frameResults.stream().noneMatch(i -> i > 0))
-            return false;
-
-        // frame result doesn't have any new data
-        int i = 0;
-        for (; i < frameResults.size(); i++) {
-            if (frameResults.get(i) > lastFrameTimestamp)
-                break;
+    private void updateTrack(Layer layer) {
+        String key = trackKey(layer);
+        if (!layer.isVisible) {
+            tracks.remove(key);
+            return;
         }
-        double totalTime = 0;
-        double frameCount = 0;
-        long preceding = lastFrameTimestamp;
-        if (i < frameResults.size()) {
-            if (i != frameResults.size() - 1) {
-                for (; i < frameResults.size(); i++) {
-                    if (preceding == 0) {
-                        preceding = frameResults.get(i);
-                        continue;
-                    }
-                    totalTime += (Double.valueOf(frameResults.get(i)) - preceding) / 1e6;
-                    preceding = frameResults.get(i);
-                    frameCount++;
-                }
-            }
-        } else return false;
-        double fps = 0.;
-        if (frameCount < 5)
-            return false;
-        if (totalTime != 0)
-            fps = frameCount / totalTime * 1000;
-        return fps >= 1;
+        LayerTrack track = tracks.get(key);
+        if (track != null)
+            track.layer = layer;
+        else
+            tracks.put(key, new LayerTrack(layer, layerHistograms.computeIfAbsent(key, k -> new FrameTimeHistogram()),
+                    sessionHistogram));
     }
 
-    void updateTargetLayer() {
-        var layers = new ArrayList<>(device.getLayers());
-        for (var layer : layers) {
-            LOGGER.debug(layer);
-            if (!layer.isVisible)
+    /**
+     * Pick the layer whose FPS is shown: an active SurfaceView first, as games and videos render there,
+     * then the current target while it stays active, then the busiest active layer
+     */
+    private LayerTrack chooseTarget() {
+        if (target != null && target.active && target.layer.isSurfaceView)
+            return target;
+        LayerTrack busiest = null;
+        for (var track : tracks.values()) {
+            if (!track.active)
                 continue;
-            var frameResults = acquireLatencyData(layer);
-            if (isLayerActive(frameResults)) {
-                if (layer.isSurfaceView) {
-                    targetLayer = layer;
-                    targetShouldChange = false;
-                    break;
-                } else {
-                    targetLayer = layer;
-                    targetShouldChange = true;
-                }
-            }
-
+            if (track.layer.isSurfaceView)
+                return track;
+            if (busiest == null || track.frameCount > busiest.frameCount)
+                busiest = track;
         }
+        if (target != null && target.active)
+            return target;
+        return busiest;
+    }
+
+    private void prepareLayers(ServerBatch batch) {
+        String packageName = device.getTargetPackage();
+        if (packageName != null && !packageName.isEmpty())
+            pendingLayerList = batch.add("list");
     }
 
     private void updateLayers() {
+        ServerBatch.Reply layerList = pendingLayerList;
+        pendingLayerList = null;
         String packageName = device.getTargetPackage();
         if (packageName != null && !packageName.isEmpty()) {
-            if (device.updateLayerList())
-                targetShouldChange = true;
+            if (layerList != null)
+                device.updateLayerList(layerList.get());
+            else
+                device.updateLayerList();
         }
     }
 
+    /**
+     * @return frame times of the session so far, of all layers
+     */
+    FrameTimeHistogram getSessionHistogram() {
+        return sessionHistogram;
+    }
+
+    /**
+     * @return frame times of the session so far by layer, keyed by layer id and name
+     */
+    Map<String, FrameTimeHistogram> getLayerHistograms() {
+        return Collections.unmodifiableMap(layerHistograms);
+    }
+
+    @Override
+    public void onLayersChanged(LayerChangeEvent event) {
+        layerChanges.add(event);
+    }
+
+    @Override
+    void prepare(ServerBatch batch) {
+        syncTracks();
+        pendingTracks = new ArrayList<>(tracks.values());
+        pendingReplies = addLatencyRequests(batch, pendingTracks);
+    }
+
     @Override
     void update() {
-        // get the latency data of the target layer
-        var frameResults = acquireLatencyData(targetLayer);
-        try {
-            // if there is no target layer, or the target layer is no longer active,
-            // or the target should change as hinted by others, we update the target layer
-            if (targetLayer == null || !isLayerActive(frameResults) || targetShouldChange) {
-                LOGGER.debug("Target-Old: " + targetLayer);
-                updateTargetLayer();
-                LOGGER.debug("Target: " + targetLayer);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        ArrayList<LayerTrack> layerTracks = pendingTracks;
+        List<ServerBatch.Reply> replies = pendingReplies;
+        pendingTracks = null;
+        pendingReplies = null;
+        if (layerTracks == null) {
+            syncTracks();
+            layerTracks = new ArrayList<>(tracks.values());
         }
+        acquireLatencyData(layerTracks, replies);
+        int threshold = activeFrameThreshold();
+        for (var track : layerTracks)
+            track.sample(threshold);
+        LayerTrack previousTarget = target;
+        target = chooseTarget();
+        if (target != previousTarget)
+            LOGGER.debug("Target: " + (target == null ? null : target.layer));
 
-        int i = 0;
-        for (; i < frameResults.size(); i++) {
-            if (frameResults.get(i) > lastFrameTimestamp)
-                break;
-        }
-        ArrayList<Double> results = new ArrayList<>();
-        long preceding = lastFrameTimestamp;
-        if (i < frameResults.size()) {
-            lastFrameTimestamp = frameResults.get(frameResults.size() - 1);
-            if (i != frameResults.size() - 1) {
-                for (; i < frameResults.size(); i++) {
-                    if (preceding == 0) {
-                        preceding = frameResults.get(i);
-                        continue;
-                    }
-                    Double frameTime = (Double.valueOf(frameResults.get(i)) - preceding) / 1e6;
-                    preceding = frameResults.get(i);
-                    results.add(frameTime);
-                }
+        double time = sampleTime();
+        double fps = target == null ? 0 : target.fps;
+        publish(CHART, time, SERIES, fps);
+
+        ArrayList<String> layerNames = new ArrayList<>();
+        ArrayList<Double> layerFps = new ArrayList<>();
+        for (var track : layerTracks) {
+            if (track.active) {
+                layerNames.add(track.layer.toString());
+                layerFps.add(track.fps);
             }
         }
+        if (!layerNames.isEmpty())
+            publish(LAYER_CHART, time, layerNames.toArray(new String[0]),
+                    layerFps.stream().mapToDouble(Double::doubleValue).toArray());
 
-        double totalTime = results.stream().mapToDouble(a -> a).sum();
-        double fps = 0;
-        if (totalTime != 0)
-            fps = results.size() / totalTime * 1000;
-        if (fps < 1.)
-            targetShouldChange = true;
-        double finalFps = fps;
-        LOGGER.debug(String.format("%d / %f = %f", results.size(), totalTime / 1000, fps));
-        LOGGER.debug("-------------------");
-        Platform.runLater(() -> device.getController().addDataToChart("FPS", new XYChart.Data<>(timer, finalFps)));
+        FrameTimeHistogram session = sessionHistogram;
+        if (session.getCount() > 0)
+            publish(FRAME_TIME_CHART, time, FRAME_TIME_SERIES, session.getPercentile(50), session.getPercentile(90),
+                    session.getPercentile(99), session.getMax(), session.getJankCount(), session.getBigJankCount(),
+                    session.getPauseCount());
+        if (target != null && target.pacing.getFrames() > 0) {
+            FramePacing pacing = target.pacing;
+            publish(PACING_CHART, time, PACING_SERIES, pacing.getAverageLatency(), pacing.getMaxLatency(),
+                    pacing.getMissedVsyncs(), pacing.getAverageJitter(), pacing.getMaxJitter(), pacing.getLateFrames());
+        }
         super.update();
     }
 
+    @Override
+    void registerDevice(Device dev) {
+        super.registerDevice(dev);
+        dev.addLayerChangeListener(this);
+    }
+
     @Override
     void end() {
+        // end() runs again upon shutdown, the session is only reported once
+        boolean wasRunning = updateTask != null && !updateTask.isCancelled();
         if (updateLayerTask != null)
-            updateLayerTask.cancel(true);
+            updateLayerTask.cancel();
         super.end();
+        FrameTimeHistogram session = sessionHistogram;
+        if (wasRunning && session.getCount() > 0) {
+            LOGGER.info(String.format("Frame times of %s: %s", device.getTargetPackage(), session));
+            layerHistograms.forEach((key, histogram) -> LOGGER.debug(String.format("Frame times of %s: %s", key, histogram)));
+        }
+    }
+
+    @Override
+    protected SamplingScheduler.Task scheduleUpdate() {
+        return scheduleAdaptiveSampling(this::update, this::prepare, 0, 100, 2000);
     }
 
     @Override
     void begin() {
         clearLatencyData();
+        layerHistograms.clear();
+        sessionHistogram = new FrameTimeHistogram();
+        tracks.clear();
+        tracksStale = true;
+        target = null;
+        pendingTracks = null;
+        pendingReplies = null;
+        pendingLayerList = null;
         super.begin();
-        updateLayerTask = executorService.scheduleAtFixedRate(this::updateLayers, 500, 500, TimeUnit.MILLISECONDS);
+        updateLayerTask = scheduleAdaptiveSampling(this::updateLayers, this::prepareLayers, 500, 500, 2000);
     }
 }
@@ -0,0 +1,126 @@
+package com.android.androidperf;
+
+/**
+ * Frame pacing of one layer, fed with the frames of each sample as they are presented.
+ * Works on the timestamps as they come, so it adds no allocation to a sample.
+ * <ul>
+ * <li>latency: from the desired to the actual present time of a frame, i.e. how long it waited for the display</li>
+ * <li>missed vsyncs: vsync periods between two frames of a burst that presented nothing new</li>
+ * <li>jitter: change of the present interval from one frame to the next</li>
+ * <li>late frames: frames presented at least a vsync after the time they were meant to,
+ * because they finished rendering too late to be latched earlier</li>
+ * </ul>
+ * Values are gathered per sample, see {@link #startSample()}, and returned in milliseconds.
+ * A {@link #reset()} after a pause of the layer starts a new burst: the layer had nothing to draw,
+ * so no vsync was missed. Any other gap is a stall, however long, and its vsyncs count as missed.
+ */
+class FramePacing {
+    private long lastPresentTime = 0;
+    private long lastInterval = 0;
+
+    // of the frames added since the sample started
+    private int frames = 0;
+    private int latencyFrames = 0;
+    private long latencySum = 0;
+    private long maxLatency = 0;
+    private long missedVsyncs = 0;
+    private int jitterFrames = 0;
+    private long jitterSum = 0;
+    private long maxJitter = 0;
+    private int lateFrames = 0;
+
+    /**
+     * Forget the previous frame, the next one starts a new burst
+     */
+    void reset() {
+        lastPresentTime = 0;
+        lastInterval = 0;
+    }
+
+    /**
+     * Start gathering the values of a new sample, the frames before it still count for intervals and jitter
+     */
+    void startSample() {
+        frames = 0;
+        latencyFrames = 0;
+        latencySum = 0;
+        maxLatency = 0;
+        missedVsyncs = 0;
+        jitterFrames = 0;
+        jitterSum = 0;
+        maxJitter = 0;
+        lateFrames = 0;
+    }
+
+    /**
+     * Add a frame, frames must come in the order they were presented
+     *
+     * @param desiredPresentTime when the app wanted the frame presented, in nanoseconds
+     * @param actualPresentTime  when the frame was presented
+     * @param frameReadyTime     when the frame finished rendering, 0 if unknown
+     * @param vsyncPeriod        refresh period of the display
+     */
+    void addFrame(long desiredPresentTime, long actualPresentTime, long frameReadyTime, long vsyncPeriod) {
+        frames++;
+        if (desiredPresentTime > 0 && actualPresentTime >= desiredPresentTime) {
+            long latency = actualPresentTime - desiredPresentTime;
+            latencySum += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            latencyFrames++;
+        }
+        // a frame ready before the vsync preceding its presentation waited for the compositor, not for rendering
+        if (frameReadyTime > 0 && desiredPresentTime > 0
+                && (actualPresentTime - desiredPresentTime) * 2 > vsyncPeriod * 3
+                && frameReadyTime > actualPresentTime - vsyncPeriod)
+            lateFrames++;
+
+        long interval = actualPresentTime - lastPresentTime;
+        if (lastPresentTime > 0 && interval > 0) {
+            // intervals are whole vsync periods give or take some jitter
+            long vsyncs = (interval + vsyncPeriod / 2) / vsyncPeriod;
+            if (vsyncs > 1)
+                missedVsyncs += vsyncs - 1;
+            if (lastInterval > 0) {
+                long jitter = Math.abs(interval - lastInterval);
+                jitterSum += jitter;
+                maxJitter = Math.max(maxJitter, jitter);
+                jitterFrames++;
+            }
+            lastInterval = interval;
+        } else {
+            lastInterval = 0;
+        }
+        lastPresentTime = actualPresentTime;
+    }
+
+    /**
+     * @return the number of frames added in this sample
+     */
+    int getFrames() {
+        return frames;
+    }
+
+    double getAverageLatency() {
+        return latencyFrames == 0 ? 0 : latencySum / 1e6 / latencyFrames;
+    }
+
+    double getMaxLatency() {
+        return maxLatency / 1e6;
+    }
+
+    long getMissedVsyncs() {
+        return missedVsyncs;
+    }
+
+    double getAverageJitter() {
+        return jitterFrames == 0 ? 0 : jitterSum / 1e6 / jitterFrames;
+    }
+
+    double getMaxJitter() {
+        return maxJitter / 1e6;
+    }
+
+    int getLateFrames() {
+        return lateFrames;
+    }
+}
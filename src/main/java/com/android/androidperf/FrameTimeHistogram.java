@@ -0,0 +1,144 @@
+package com.android.androidperf;
+
+/**
+ * Frame times in a log-linear histogram of fixed size, in the manner of HdrHistogram:
+ * every power of two of microseconds is split into 32 buckets, so any value is kept
+ * within about 3% while memory stays the same however many frames are recorded.
+ * Histograms of several layers or sessions can be merged.
+ * <p>
+ * Frames are counted as janky when they took longer than one vsync period,
+ * and as big jank when they took longer than three. Present times are aligned to vsync,
+ * so half a period is allowed for jitter, i.e. a janky frame missed at least one vsync.
+ * Gaps over which the layer was at rest are counted as pauses apart from the frames.
+ */
+class FrameTimeHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // frame times are capped at a minute, about 2^26 microseconds
+    private static final long MAX_VALUE = 60_000_000L;
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+    // shortest gap counted as a pause rather than a frame, if the layer presented nothing for a whole sample
+    static final long MIN_PAUSE = 1_000_000_000L;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount = 0;
+    private long maxValue = 0;
+    private long jankCount = 0;
+    private long bigJankCount = 0;
+    private long pauseCount = 0;
+
+    /**
+     * Record the time of one frame
+     *
+     * @param frameTime    time since the previous frame was presented, in nanoseconds
+     * @param vsyncPeriod  refresh period of the display, in nanoseconds
+     */
+    synchronized void record(long frameTime, long vsyncPeriod) {
+        long value = Math.max(0, Math.min(frameTime / 1000, MAX_VALUE));
+        counts[indexOf(value)]++;
+        totalCount++;
+        maxValue = Math.max(maxValue, value);
+        if (vsyncPeriod > 0) {
+            if (frameTime * 2 > vsyncPeriod * 3)
+                jankCount++;
+            if (frameTime * 2 > vsyncPeriod * 7)
+                bigJankCount++;
+        }
+    }
+
+    /**
+     * Add the frames and pauses of another histogram to this one
+     */
+    void merge(FrameTimeHistogram other) {
+        long[] otherCounts;
+        long otherTotal, otherMax, otherJank, otherBigJank, otherPauses;
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherTotal = other.totalCount;
+            otherMax = other.maxValue;
+            otherJank = other.jankCount;
+            otherBigJank = other.bigJankCount;
+            otherPauses = other.pauseCount;
+        }
+        synchronized (this) {
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] += otherCounts[i];
+            totalCount += otherTotal;
+            maxValue = Math.max(maxValue, otherMax);
+            jankCount += otherJank;
+            bigJankCount += otherBigJank;
+            pauseCount += otherPauses;
+        }
+    }
+
+    /**
+     * Count a gap over which the layer had nothing to draw, it is not a frame
+     */
+    synchronized void recordPause() {
+        pauseCount++;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the frame time in milliseconds that the given share of frames did not exceed, 0 if there is no frame
+     */
+    synchronized double getPercentile(double percentile) {
+        if (totalCount == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValueAt(i), maxValue) / 1000.;
+        }
+        return maxValue / 1000.;
+    }
+
+    /**
+     * @return the longest frame time in milliseconds
+     */
+    synchronized double getMax() {
+        return maxValue / 1000.;
+    }
+
+    synchronized long getCount() {
+        return totalCount;
+    }
+
+    synchronized long getJankCount() {
+        return jankCount;
+    }
+
+    synchronized long getBigJankCount() {
+        return bigJankCount;
+    }
+
+    synchronized long getPauseCount() {
+        return pauseCount;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d frames, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms, %d jank, %d big jank, %d pauses",
+                totalCount, getPercentile(50), getPercentile(90), getPercentile(99), getMax(), jankCount, bigJankCount,
+                pauseCount);
+    }
+}
@@ -0,0 +1,249 @@
+package com.android.androidperf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Frame timestamps of one layer, decoded from a SurfaceFlinger latency reply.
+ * The reply is parsed straight from its bytes into primitive arrays that are reused
+ * across samples, so tracking high refresh rate layers does not allocate per frame.
+ */
+class FrameTimeline {
+    // SurfaceFlinger keeps the latest 128 frames, plus one slot for the padding timestamp
+    private static final int DEFAULT_CAPACITY = 129;
+    private static final byte[] PADDING = "PADDING".getBytes(StandardCharsets.US_ASCII);
+
+    private long[] presentTimes = new long[DEFAULT_CAPACITY];
+    // the other columns of the reply, 0 where unknown
+    private long[] desiredPresentTimes = new long[DEFAULT_CAPACITY];
+    private long[] frameReadyTimes = new long[DEFAULT_CAPACITY];
+    private int size = 0;
+    // frames before the padding timestamp, if any
+    private int frameCount = 0;
+    // display refresh period in nanoseconds, 0 if the reply did not tell
+    private long refreshPeriod = 0;
+
+    // scratch state of the number parser
+    private long parsedValue;
+    private int parsedEnd;
+
+    void clear() {
+        size = 0;
+        frameCount = 0;
+        refreshPeriod = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long get(int index) {
+        return presentTimes[index];
+    }
+
+    long last() {
+        return presentTimes[size - 1];
+    }
+
+    /**
+     * @return when the app wanted the frame to be presented, in nanoseconds
+     */
+    long getDesiredPresentTime(int index) {
+        return desiredPresentTimes[index];
+    }
+
+    /**
+     * @return when the frame finished rendering, in nanoseconds, or 0 if it is not known yet
+     */
+    long getFrameReadyTime(int index) {
+        return frameReadyTimes[index];
+    }
+
+    /**
+     * @return number of presented frames, which excludes the trailing padding timestamp
+     */
+    int frameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return vsync period of the display in nanoseconds, or 0 if unknown
+     */
+    long getRefreshPeriod() {
+        return refreshPeriod;
+    }
+
+    /**
+     * @return index of the first frame presented after {@code timestamp}, or {@link #size()} if there is none
+     */
+    int indexAfter(long timestamp) {
+        int i = 0;
+        while (i < size && presentTimes[i] <= timestamp)
+            i++;
+        return i;
+    }
+
+    /**
+     * Decode a latency reply. Lines look like [desiredPresentTime] [actualPresentTime] [frameReadyTime],
+     * all in nanoseconds, after a first line holding the refresh period. Layers sharing a name are
+     * separated by blank lines. A "PADDING [timestamp]" token closes the timeline of a non-idle layer.
+     *
+     * @param data    raw reply
+     * @param section index of the layer among those sharing its name
+     * @return false if the reply holds no frames for the layer
+     */
+    boolean parse(byte[] data, int section) {
+        clear();
+        int length = data.length;
+
+        long padding = 0;
+        int paddingIndex = indexOf(data, PADDING);
+        if (paddingIndex >= 0 && parseLong(data, skipSpaces(data, paddingIndex + PADDING.length, length), length))
+            padding = parsedValue;
+
+        // locate the section, blank lines separate the layers sharing a name
+        int start = 0;
+        int end = length;
+        int sections = 0;
+        int sectionStart = 0;
+        int lastNonEmptySection = -1;
+        for (int i = 0; i <= length; i++) {
+            int separator = i == length ? 0 : blankLineLength(data, i, length);
+            if (i < length && separator == 0)
+                continue;
+            if (hasContent(data, sectionStart, i))
+                lastNonEmptySection = sections;
+            if (sections == section) {
+                start = sectionStart;
+                end = i;
+            }
+            sections++;
+            if (i == length)
+                break;
+            sectionStart = i + separator;
+            i = sectionStart - 1;
+        }
+        // trailing blank sections do not count, and a single section is used whatever the index
+        sections = lastNonEmptySection + 1;
+        if (sections <= 1) {
+            start = 0;
+            end = length;
+        } else if (section >= sections) {
+            return false;
+        }
+
+        // the first line holds the refresh period
+        int pos = indexOfLineEnd(data, start, end);
+        if (parseLong(data, skipSpaces(data, start, pos), pos) && parsedValue > 0)
+            refreshPeriod = parsedValue;
+        pos++;
+        while (pos < end) {
+            int lineEnd = indexOfLineEnd(data, pos, end);
+            if (!hasContent(data, pos, lineEnd))
+                break;
+            int column = skipSpaces(data, pos, lineEnd);
+            // the first column must be a timestamp, which rules out trailing tokens such as PADDING
+            if (parseLong(data, column, lineEnd)) {
+                long desiredPresentTime = parsedValue;
+                if (parseLong(data, skipSpaces(data, parsedEnd, lineEnd), lineEnd)) {
+                    long actualPresentTime = parsedValue;
+                    long frameReadyTime = 0;
+                    // a frame whose fence has not signaled yet has no ready time
+                    if (parseLong(data, skipSpaces(data, parsedEnd, lineEnd), lineEnd) && parsedValue != Long.MAX_VALUE)
+                        frameReadyTime = parsedValue;
+                    if (actualPresentTime != Long.MAX_VALUE)
+                        add(desiredPresentTime, actualPresentTime, frameReadyTime);
+                }
+            }
+            pos = lineEnd + 1;
+        }
+
+        frameCount = size;
+        if (size > 0 && last() != 0)
+            add(0, padding, 0);
+        return size > 0;
+    }
+
+    private void add(long desiredPresentTime, long actualPresentTime, long frameReadyTime) {
+        if (size == presentTimes.length) {
+            presentTimes = Arrays.copyOf(presentTimes, size * 2);
+            desiredPresentTimes = Arrays.copyOf(desiredPresentTimes, size * 2);
+            frameReadyTimes = Arrays.copyOf(frameReadyTimes, size * 2);
+        }
+        desiredPresentTimes[size] = desiredPresentTime;
+        frameReadyTimes[size] = frameReadyTime;
+        presentTimes[size++] = actualPresentTime;
+    }
+
+    /**
+     * Parse a decimal number starting at {@code pos}, leaving it in {@link #parsedValue}
+     * and the offset after it in {@link #parsedEnd}
+     *
+     * @return false if there is no valid number at {@code pos}
+     */
+    private boolean parseLong(byte[] data, int pos, int end) {
+        boolean negative = pos < end && data[pos] == '-';
+        int i = negative ? pos + 1 : pos;
+        int digitsStart = i;
+        long value = 0;
+        while (i < end && data[i] >= '0' && data[i] <= '9') {
+            value = value * 10 + (data[i] - '0');
+            i++;
+        }
+        int digits = i - digitsStart;
+        // 19 digits may wrap around once, which shows up as a negative value
+        if (digits == 0 || digits > 19 || value < 0)
+            return false;
+        if (i < end && !isSpace(data[i]))
+            return false;
+        parsedValue = negative ? -value : value;
+        parsedEnd = i;
+        return true;
+    }
+
+    /**
+     * @return length of the line break pair starting at {@code pos}, or 0 if there is none
+     */
+    private static int blankLineLength(byte[] data, int pos, int end) {
+        if (data[pos] != '\n')
+            return 0;
+        if (pos + 1 < end && data[pos + 1] == '\n')
+            return 2;
+        if (pos + 2 < end && data[pos + 1] == '\r' && data[pos + 2] == '\n')
+            return 3;
+        return 0;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static int skipSpaces(byte[] data, int pos, int end) {
+        while (pos < end && isSpace(data[pos]))
+            pos++;
+        return pos;
+    }
+
+    private static boolean hasContent(byte[] data, int start, int end) {
+        return skipSpaces(data, start, end) < end;
+    }
+
+    private static int indexOfLineEnd(byte[] data, int start, int end) {
+        int i = start;
+        while (i < end && data[i] != '\n')
+            i++;
+        return i;
+    }
+
+    private static int indexOf(byte[] data, byte[] token) {
+        outer:
+        for (int i = 0; i <= data.length - token.length; i++) {
+            for (int j = 0; j < token.length; j++) {
+                if (data[i + j] != token[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,240 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Command line mode without UI: records the metrics of a package on several devices into files,
+ * or prints a recording as CSV.
+ */
+class HeadlessRecorder {
+    private static final Logger LOGGER = LogManager.getLogger(HeadlessRecorder.class);
+    static final String RECORD = "--headless";
+    static final String READ = "--read";
+    private static final String USAGE = "Usage:\n" +
+            "  --headless --package <name> [--serial <serial>]... [--duration <seconds>] [--output <dir>]\n" +
+            "  --read <file> [--from <seconds>] [--to <seconds>]";
+
+    private final List<Device> devices = new CopyOnWriteArrayList<>();
+    // set once the recordings are being completed, devices set up later are not recorded
+    private boolean stopped = false;
+
+    private HeadlessRecorder() {
+    }
+
+    static boolean handles(String[] args) {
+        return args.length > 0 && (args[0].equals(RECORD) || args[0].equals(READ));
+    }
+
+    static void main(String[] args) {
+        try {
+            if (args[0].equals(READ))
+                read(args);
+            else
+                new HeadlessRecorder().record(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+    }
+
+    private void record(String[] args) {
+        String packageName = null;
+        ArrayList<String> serials = new ArrayList<>();
+        long duration = 0;
+        File output = new File(".");
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--package":
+                    packageName = value(args, ++i);
+                    break;
+                case "--serial":
+                    serials.add(value(args, ++i));
+                    break;
+                case "--duration":
+                    duration = (long) (number(value(args, ++i)) * 1000);
+                    break;
+                case "--output":
+                    output = new File(value(args, ++i));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (packageName == null)
+            throw new IllegalArgumentException("No package given");
+        if (!output.isDirectory() && !output.mkdirs()) {
+            LOGGER.error("Cannot create output directory " + output);
+            System.exit(1);
+        }
+
+        List<JadbDevice> adbDevices;
+        try {
+            adbDevices = Device.connection.getDevices();
+        } catch (IOException | JadbException e) {
+            LOGGER.error("Cannot get device list, is the adb server running?", e);
+            System.exit(1);
+            return;
+        }
+        ArrayList<JadbDevice> selected = new ArrayList<>();
+        for (var adbDevice : adbDevices) {
+            if (adbDevice.getDetectedState() != JadbDevice.State.Device)
+                continue;
+            if (serials.isEmpty() || serials.contains(adbDevice.getSerial()))
+                selected.add(adbDevice);
+        }
+        if (selected.isEmpty()) {
+            LOGGER.error("No device to record");
+            System.exit(1);
+        }
+
+        CountDownLatch finished = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stop();
+            finished.countDown();
+        }, "headless-stop"));
+
+        // devices are set up concurrently, starting the server takes seconds on each
+        String target = packageName;
+        File dir = output;
+        ArrayList<Thread> starters = new ArrayList<>();
+        for (var adbDevice : selected) {
+            Thread thread = new Thread(() -> start(adbDevice, target, dir), "headless-" + adbDevice.getSerial());
+            thread.start();
+            starters.add(thread);
+        }
+        try {
+            for (var thread : starters)
+                thread.join();
+            if (devices.isEmpty()) {
+                LOGGER.error("No device could be recorded");
+                System.exit(1);
+            }
+            if (duration > 0) {
+                Thread.sleep(duration);
+                System.exit(0);
+            }
+            finished.await();
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+    private void start(JadbDevice adbDevice, String packageName, File output) {
+        String serial = adbDevice.getSerial();
+        Device device = new Device(adbDevice, null);
+        device.awaitDiscovery();
+        if (!device.startServer()) {
+            LOGGER.error("Cannot start server on " + serial);
+            device.shutdown();
+            return;
+        }
+        device.setTargetPackage(packageName);
+        File file = new File(output, MetricRecorder.fileName(serial, System.currentTimeMillis()));
+        try {
+            device.setRecorder(new MetricRecorder(file, serial, packageName));
+        } catch (IOException e) {
+            LOGGER.error("Cannot create recording " + file, e);
+            device.shutdown();
+            return;
+        }
+        synchronized (this) {
+            if (!stopped) {
+                devices.add(device);
+                device.startPerf();
+                LOGGER.info(String.format("Recording %s on %s to %s", packageName, serial, file));
+                return;
+            }
+        }
+        // the recorder is exiting, the file is completed empty
+        finish(device);
+    }
+
+    /**
+     * Stop profiling and complete the recordings, run upon exit
+     */
+    private void stop() {
+        synchronized (this) {
+            stopped = true;
+        }
+        for (var device : devices)
+            finish(device);
+    }
+
+    /**
+     * Stop profiling a device, complete its recording and shut it down
+     */
+    private static void finish(Device device) {
+        // ending the services writes out the samples they still hold
+        device.endPerf();
+        MetricRecorder recorder = device.getRecorder();
+        device.setRecorder(null);
+        try {
+            if (recorder != null)
+                recorder.close();
+        } catch (IOException e) {
+            LOGGER.error("Cannot complete recording of " + device.getDeviceADBID(), e);
+        }
+        device.shutdown();
+    }
+
+    private static void read(String[] args) {
+        if (args.length < 2)
+            throw new IllegalArgumentException("No file given");
+        File file = new File(args[1]);
+        double from = 0;
+        double to = Double.MAX_VALUE;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--from":
+                    from = number(value(args, ++i));
+                    break;
+                case "--to":
+                    to = number(value(args, ++i));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        try (MetricReader reader = new MetricReader(file)) {
+            StringBuilder csv = new StringBuilder("series,time,value\n");
+            reader.read(from, to, (series, time, value) -> {
+                csv.append(series).append(',').append(time).append(',').append(value).append('\n');
+                if (csv.length() > 8192) {
+                    System.out.print(csv);
+                    csv.setLength(0);
+                }
+            });
+            System.out.print(csv);
+            System.out.flush();
+        } catch (IOException e) {
+            LOGGER.error("Cannot read recording " + file, e);
+            System.exit(1);
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value of " + args[i - 1]);
+        return args[i];
+    }
+
+    private static double number(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+    }
+}
@@ -29,6 +29,21 @@ public class Layer {
                 x + w <= layer.x + layer.w && y + h <= layer.y + layer.h;
     }
 
+    /**
+     * @return true if both describe the same layer, whatever its state
+     */
+    public boolean isSameLayer(Layer layer) {
+        return id == layer.id && layerName.equals(layer.layerName);
+    }
+
+    /**
+     * @return true if both have the same geometry and visibility
+     */
+    public boolean hasSameState(Layer layer) {
+        return isVisible == layer.isVisible && w == layer.w && h == layer.h &&
+                x == layer.x && y == layer.y && z == layer.z;
+    }
+
     @Override
     public String toString() {
         return String.format("Layer#%d:%s", id, layerName);
@@ -0,0 +1,80 @@
+package com.android.androidperf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how the layers of the target package changed between two layer list updates
+ */
+public class LayerChangeEvent {
+    static final LayerChangeEvent EMPTY = new LayerChangeEvent(Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+
+    private final List<Layer> added;
+    private final List<Layer> removed;
+    private final List<Layer> changed;
+
+    LayerChangeEvent(List<Layer> added, List<Layer> removed, List<Layer> changed) {
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    /**
+     * Compute the changes from one layer list to the next. Layers are matched by name and id,
+     * and a matched layer is changed if its geometry or visibility differs.
+     * Unchanged layers of the new list are replaced by their previous instances.
+     *
+     * @param previous the previous layers
+     * @param current  the new layers, updated in place
+     * @return the changes
+     */
+    static LayerChangeEvent diff(List<Layer> previous, List<Layer> current) {
+        ArrayList<Layer> added = new ArrayList<>();
+        ArrayList<Layer> changed = new ArrayList<>();
+        ArrayList<Layer> removed = new ArrayList<>(previous);
+        for (int i = 0; i < current.size(); i++) {
+            Layer layer = current.get(i);
+            Layer old = null;
+            for (var candidate : removed) {
+                if (candidate.isSameLayer(layer)) {
+                    old = candidate;
+                    break;
+                }
+            }
+            if (old == null) {
+                added.add(layer);
+                continue;
+            }
+            removed.remove(old);
+            if (old.hasSameState(layer))
+                current.set(i, old);
+            else
+                changed.add(layer);
+        }
+        if (added.isEmpty() && removed.isEmpty() && changed.isEmpty())
+            return EMPTY;
+        return new LayerChangeEvent(added, removed, changed);
+    }
+
+    public List<Layer> getAdded() {
+        return added;
+    }
+
+    public List<Layer> getRemoved() {
+        return removed;
+    }
+
+    public List<Layer> getChanged() {
+        return changed;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LayerChangeEvent{added=%s, removed=%s, changed=%s}", added, removed, changed);
+    }
+}
@@ -0,0 +1,5 @@
+package com.android.androidperf;
+
+public interface LayerChangeListener {
+    void onLayersChanged(LayerChangeEvent event);
+}
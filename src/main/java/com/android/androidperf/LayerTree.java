@@ -0,0 +1,181 @@
+package com.android.androidperf;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Index of the layers found in a SurfaceFlinger dump, built in a single pass over the dump.
+ * Layers are looked up by name and by parent name, so resolving the layer hierarchy
+ * no longer rescans the dump for every layer.
+ */
+class LayerTree {
+    private static final Pattern bufferSizePattern = Pattern.compile("activeBuffer=\\[([ \\d]+)x([ \\d]+):");
+    private static final Pattern bufferPosPattern = Pattern.compile("pos=\\(\\s*(-?\\d+),\\s*(-?\\d+)\\),");
+    private static final Pattern bufferZOrderPattern = Pattern.compile("z=\\s*(-?\\d+),");
+    private static final String PARENT = "parent=";
+    private static final String BUFFER_SLOT = "slot=";
+
+    /**
+     * One layer entry of the dump
+     */
+    static class Node {
+        final String name;
+        // position of the entry in the dump
+        final int index;
+        int w = -1, h = -1, x = -1, y = -1, z = -1;
+        boolean hasActiveBuffer = false;
+        boolean hasBufferSlot = false;
+        String parentName = null;
+
+        Node(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Node#%d:%s", index, name);
+        }
+    }
+
+    private final ArrayList<Node> nodes = new ArrayList<>();
+    private final TreeMap<String, ArrayList<Node>> nodesByName = new TreeMap<>();
+    private final TreeMap<String, ArrayList<Node>> nodesByParentName = new TreeMap<>();
+
+    private LayerTree() {
+    }
+
+    /**
+     * Build the index from a SurfaceFlinger dump
+     *
+     * @param dump the dump, optionally filtered down to layer headers and their attribute lines
+     * @return the layer tree
+     */
+    static LayerTree parse(String dump) {
+        LayerTree tree = new LayerTree();
+        Node node = null;
+        int lineStart = 0;
+        int length = dump.length();
+        while (lineStart < length) {
+            int lineEnd = dump.indexOf('\n', lineStart);
+            if (lineEnd < 0)
+                lineEnd = length;
+            String line = dump.substring(lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+
+            String name = parseLayerName(line);
+            if (name != null) {
+                node = new Node(name, tree.nodes.size());
+                tree.nodes.add(node);
+                tree.nodesByName.computeIfAbsent(name, k -> new ArrayList<>()).add(node);
+                continue;
+            }
+            if (node != null)
+                parseAttributes(node, line);
+        }
+
+        for (var entry : tree.nodes) {
+            if (entry.parentName != null)
+                tree.nodesByParentName.computeIfAbsent(entry.parentName, k -> new ArrayList<>()).add(entry);
+        }
+        return tree;
+    }
+
+    /**
+     * Extract the name of a layer header such as "+ Layer 0x7f162ba23000 (StatusBar#0)"
+     * or "+ BufferLayer (StatusBar#0) uid=1000"
+     *
+     * @return the name, or null if the line is not a layer header
+     */
+    static String parseLayerName(String line) {
+        int start = 0;
+        while (start < line.length() && line.charAt(start) == ' ')
+            start++;
+        if (start + 1 >= line.length() || (line.charAt(start) != '*' && line.charAt(start) != '+')
+                || line.charAt(start + 1) != ' ')
+            return null;
+        int layer = line.indexOf("Layer", start + 2);
+        if (layer < 0)
+            return null;
+        int open = line.indexOf('(', layer);
+        int close = line.lastIndexOf(')');
+        if (open < 0 || close <= open)
+            return null;
+        return line.substring(open + 1, close);
+    }
+
+    private static void parseAttributes(Node node, String line) {
+        if (line.contains(BUFFER_SLOT))
+            node.hasBufferSlot = true;
+
+        Matcher matcher;
+        try {
+            if (!node.hasActiveBuffer) {
+                matcher = bufferSizePattern.matcher(line);
+                if (matcher.find()) {
+                    node.w = Integer.parseInt(matcher.group(1).strip());
+                    node.h = Integer.parseInt(matcher.group(2).strip());
+                    node.hasActiveBuffer = true;
+                }
+            }
+            matcher = bufferPosPattern.matcher(line);
+            if (node.x == -1 && node.y == -1 && matcher.find()) {
+                node.x = Integer.parseInt(matcher.group(1));
+                node.y = Integer.parseInt(matcher.group(2));
+            }
+            matcher = bufferZOrderPattern.matcher(line);
+            if (node.z == -1 && matcher.find())
+                node.z = Integer.parseInt(matcher.group(1));
+        } catch (NumberFormatException ignored) {
+        }
+
+        // parent names may contain spaces and run to the end of the line
+        if (node.parentName == null)
+            node.parentName = parseNameAttribute(line, PARENT);
+    }
+
+    private static String parseNameAttribute(String line, String attribute) {
+        int index = line.indexOf(attribute);
+        if (index < 0 || (index > 0 && Character.isLetter(line.charAt(index - 1))))
+            return null;
+        String name = line.substring(index + attribute.length()).strip();
+        return name.isEmpty() || name.equals("none") ? null : name;
+    }
+
+    /**
+     * Find the layer entries whose names start with a layer name from the layer list
+     *
+     * @param prefix the layer name
+     * @return the matching entries in dump order
+     */
+    List<Node> findByName(String prefix) {
+        return collectByPrefix(nodesByName, prefix);
+    }
+
+    /**
+     * Find the layer entries whose parent's name starts with the given layer name
+     *
+     * @param prefix the parent layer name
+     * @return the children entries in dump order
+     */
+    List<Node> findChildren(String prefix) {
+        return collectByPrefix(nodesByParentName, prefix);
+    }
+
+    private static List<Node> collectByPrefix(TreeMap<String, ArrayList<Node>> index, String prefix) {
+        ArrayList<Node> exact = index.get(prefix);
+        ArrayList<Node> result = null;
+        for (var entry : index.tailMap(prefix, false).entrySet()) {
+            if (!entry.getKey().startsWith(prefix))
+                break;
+            if (result == null)
+                result = exact == null ? new ArrayList<>() : new ArrayList<>(exact);
+            result.addAll(entry.getValue());
+        }
+        if (result == null)
+            return exact == null ? Collections.emptyList() : exact;
+        result.sort(Comparator.comparingInt(n -> n.index));
+        return result;
+    }
+}
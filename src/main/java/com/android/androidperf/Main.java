@@ -2,6 +2,9 @@ package com.android.androidperf;
 
 public class Main {
     public static void main(String[] args) {
-        MainApplication.main(args);
+        if (HeadlessRecorder.handles(args))
+            HeadlessRecorder.main(args);
+        else
+            MainApplication.main(args);
     }
 }
@@ -0,0 +1,201 @@
+package com.android.androidperf;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads recordings written by {@link MetricRecorder}. Only the chunks overlapping
+ * the requested time range are decompressed.
+ */
+class MetricReader implements Closeable {
+    /**
+     * Receives the values read from a recording
+     */
+    interface Visitor {
+        void accept(String series, double time, double value);
+    }
+
+    private final RandomAccessFile file;
+    private final long startMillis;
+    private final String serial;
+    private final String packageName;
+    private final ArrayList<String> series = new ArrayList<>();
+    private final ArrayList<MetricRecorder.ChunkInfo> chunks = new ArrayList<>();
+    private final Inflater inflater = new Inflater();
+
+    MetricReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            if (file.readInt() != MetricRecorder.MAGIC)
+                throw new IOException("Not a recording: " + path);
+            int version = file.readInt();
+            if (version != MetricRecorder.VERSION)
+                throw new IOException("Unsupported recording version " + version);
+            startMillis = file.readLong();
+            serial = file.readUTF();
+            packageName = file.readUTF();
+            long firstChunk = file.getFilePointer();
+            if (!readFooter())
+                scanChunks(firstChunk);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return false if there is no valid footer, as in a recording that was cut short
+     */
+    private boolean readFooter() throws IOException {
+        long length = file.length();
+        if (length < 12)
+            return false;
+        file.seek(length - 12);
+        long footerOffset = file.readLong();
+        if (file.readInt() != MetricRecorder.MAGIC || footerOffset <= 0 || footerOffset >= length - 12)
+            return false;
+        file.seek(footerOffset);
+        if (file.readInt() != MetricRecorder.FOOTER_MARKER)
+            return false;
+        int seriesCount = file.readInt();
+        for (int i = 0; i < seriesCount; i++)
+            series.add(file.readUTF());
+        int chunkCount = file.readInt();
+        for (int i = 0; i < chunkCount; i++)
+            chunks.add(new MetricRecorder.ChunkInfo(file.readLong(), file.readInt(), file.readDouble(), file.readDouble()));
+        return true;
+    }
+
+    /**
+     * Rebuild the index from the chunk headers, stopping at the first incomplete chunk
+     */
+    private void scanChunks(long offset) throws IOException {
+        long length = file.length();
+        series.clear();
+        chunks.clear();
+        try {
+            while (offset < length) {
+                file.seek(offset);
+                if (file.readInt() != MetricRecorder.CHUNK_MARKER)
+                    break;
+                int count = file.readInt();
+                double minTime = file.readDouble();
+                double maxTime = file.readDouble();
+                ArrayList<String> names = new ArrayList<>();
+                int newSeries = file.readInt();
+                for (int i = 0; i < newSeries; i++)
+                    names.add(file.readUTF());
+                int compressedLength = file.readInt();
+                long end = file.getFilePointer() + compressedLength;
+                if (end > length)
+                    break;
+                series.addAll(names);
+                chunks.add(new MetricRecorder.ChunkInfo(offset, count, minTime, maxTime));
+                offset = end;
+            }
+        } catch (EOFException ignored) {
+        }
+    }
+
+    /**
+     * Visit all values recorded within a time range
+     *
+     * @param from    start of the range in seconds since the recording began, inclusive
+     * @param to      end of the range, inclusive
+     * @param visitor receives the values in recording order
+     */
+    void read(double from, double to, Visitor visitor) throws IOException {
+        for (var chunk : chunks) {
+            if (chunk.maxTime < from || chunk.minTime > to)
+                continue;
+            file.seek(chunk.offset);
+            file.readInt();
+            int count = file.readInt();
+            file.readDouble();
+            file.readDouble();
+            int newSeries = file.readInt();
+            for (int i = 0; i < newSeries; i++)
+                file.readUTF();
+            byte[] compressed = new byte[file.readInt()];
+            file.readFully(compressed);
+
+            DataInputStream columns = new DataInputStream(new ByteArrayInputStream(inflate(compressed)));
+            double[] times = new double[count];
+            long micros = 0;
+            for (int i = 0; i < count; i++) {
+                micros += MetricRecorder.unzigzag(readVarLong(columns));
+                times[i] = micros / 1e6;
+            }
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++)
+                ids[i] = (int) readVarLong(columns);
+            for (int i = 0; i < count; i++) {
+                double value = columns.readDouble();
+                if (times[i] >= from && times[i] <= to)
+                    visitor.accept(series.get(ids[i]), times[i], value);
+            }
+        }
+    }
+
+    private byte[] inflate(byte[] compressed) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(compressed.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int len = inflater.inflate(buffer);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated chunk");
+                output.write(buffer, 0, len);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted chunk", e);
+        }
+        return output.toByteArray();
+    }
+
+    private static long readVarLong(DataInputStream input) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+            shift += 7;
+        }
+    }
+
+    /**
+     * @return wall clock time the recording began at, in milliseconds since the epoch
+     */
+    long getStartMillis() {
+        return startMillis;
+    }
+
+    String getSerial() {
+        return serial;
+    }
+
+    String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * @return names of all recorded series, "chart/series"
+     */
+    List<String> getSeries() {
+        return Collections.unmodifiableList(series);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        file.close();
+    }
+}
@@ -0,0 +1,233 @@
+package com.android.androidperf;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Appends samples to a recording file, column by column in compressed chunks.
+ * <p>
+ * Layout: a header, then chunks, then a footer indexing the chunks by time, so that a time range
+ * can be read without decompressing the whole recording.
+ * <pre>
+ * header: MAGIC, VERSION, start time (epoch ms), serial, package
+ * chunk:  CHUNK_MARKER, count, min time, max time, new series names, compressed length, compressed columns
+ *         columns: times (µs, zigzag varint deltas), series ids (varints), values (doubles)
+ * footer: FOOTER_MARKER, all series names, chunk count, (offset, count, min time, max time) per chunk,
+ *         footer offset, MAGIC
+ * </pre>
+ * Series names are declared in the chunk that first uses them, so a recording cut short
+ * before its footer was written can still be read by scanning its chunks.
+ */
+class MetricRecorder implements Closeable {
+    static final int MAGIC = 0x41505246; // "APRF"
+    static final int VERSION = 1;
+    static final int CHUNK_MARKER = 0x43484e4b; // "CHNK"
+    static final int FOOTER_MARKER = 0x46545252; // "FTRR"
+    private static final int CHUNK_SIZE = 4096;
+    // a chunk is written once it is full or this old, which bounds what a killed recording loses
+    private static final long MAX_CHUNK_AGE = TimeUnit.SECONDS.toNanos(60);
+
+    /**
+     * Index entry of one chunk
+     */
+    static class ChunkInfo {
+        final long offset;
+        final int count;
+        final double minTime;
+        final double maxTime;
+
+        ChunkInfo(long offset, int count, double minTime, double maxTime) {
+            this.offset = offset;
+            this.count = count;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+        }
+    }
+
+    private final DataOutputStream output;
+    private long position = 0;
+    private final HashMap<String, Integer> seriesIds = new HashMap<>();
+    private final ArrayList<String> seriesNames = new ArrayList<>();
+    private int declaredSeries = 0;
+    private final ArrayList<ChunkInfo> chunks = new ArrayList<>();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private boolean closed = false;
+
+    // columns of the chunk being filled
+    private final double[] times = new double[CHUNK_SIZE];
+    private final int[] ids = new int[CHUNK_SIZE];
+    private final double[] values = new double[CHUNK_SIZE];
+    private int count = 0;
+    private long chunkStarted = 0;
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Create a recording file
+     *
+     * @param file        the file, replaced if it exists
+     * @param serial      serial of the recorded device
+     * @param packageName the recorded package
+     */
+    MetricRecorder(File file, String serial, String packageName) throws IOException {
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOutput = new DataOutputStream(header);
+        headerOutput.writeInt(MAGIC);
+        headerOutput.writeInt(VERSION);
+        headerOutput.writeLong(System.currentTimeMillis());
+        headerOutput.writeUTF(serial);
+        headerOutput.writeUTF(packageName == null ? "" : packageName);
+        write(header);
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the recording began, the time base of its samples
+     */
+    long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Append a sample, every series of the chart becomes a series named "chart/series"
+     */
+    synchronized void append(Sample sample) throws IOException {
+        if (closed)
+            return;
+        for (int i = 0; i < sample.values.length; i++) {
+            String name = sample.chartName + "/" + sample.series[i];
+            Integer id = seriesIds.get(name);
+            if (id == null) {
+                id = seriesNames.size();
+                seriesIds.put(name, id);
+                seriesNames.add(name);
+            }
+            if (count == 0)
+                chunkStarted = System.nanoTime();
+            times[count] = sample.time;
+            ids[count] = id;
+            values[count] = sample.values[i];
+            count++;
+            if (count == CHUNK_SIZE || System.nanoTime() - chunkStarted > MAX_CHUNK_AGE)
+                flushChunk();
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (count == 0)
+            return;
+
+        ByteArrayOutputStream columns = new ByteArrayOutputStream(count * 12);
+        DataOutputStream columnOutput = new DataOutputStream(columns);
+        double minTime = Double.MAX_VALUE;
+        double maxTime = -Double.MAX_VALUE;
+        long lastMicros = 0;
+        for (int i = 0; i < count; i++) {
+            long micros = Math.round(times[i] * 1e6);
+            writeVarLong(columnOutput, zigzag(micros - lastMicros));
+            lastMicros = micros;
+            minTime = Math.min(minTime, times[i]);
+            maxTime = Math.max(maxTime, times[i]);
+        }
+        for (int i = 0; i < count; i++)
+            writeVarLong(columnOutput, ids[i]);
+        for (int i = 0; i < count; i++)
+            columnOutput.writeDouble(values[i]);
+        byte[] compressed = compress(columns.toByteArray());
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(compressed.length + 64);
+        DataOutputStream chunkOutput = new DataOutputStream(chunk);
+        chunkOutput.writeInt(CHUNK_MARKER);
+        chunkOutput.writeInt(count);
+        chunkOutput.writeDouble(minTime);
+        chunkOutput.writeDouble(maxTime);
+        chunkOutput.writeInt(seriesNames.size() - declaredSeries);
+        for (int i = declaredSeries; i < seriesNames.size(); i++)
+            chunkOutput.writeUTF(seriesNames.get(i));
+        declaredSeries = seriesNames.size();
+        chunkOutput.writeInt(compressed.length);
+        chunkOutput.write(compressed);
+
+        chunks.add(new ChunkInfo(position, count, minTime, maxTime));
+        write(chunk);
+        // make the chunk durable, a recording may be killed at any time
+        output.flush();
+        count = 0;
+    }
+
+    private byte[] compress(byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int len = deflater.deflate(buffer);
+            compressed.write(buffer, 0, len);
+        }
+        return compressed.toByteArray();
+    }
+
+    private void write(ByteArrayOutputStream data) throws IOException {
+        data.writeTo(output);
+        position += data.size();
+    }
+
+    /**
+     * Write the pending chunk and the footer
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            flushChunk();
+            long footerOffset = position;
+            ByteArrayOutputStream footer = new ByteArrayOutputStream();
+            DataOutputStream footerOutput = new DataOutputStream(footer);
+            footerOutput.writeInt(FOOTER_MARKER);
+            footerOutput.writeInt(seriesNames.size());
+            for (String name : seriesNames)
+                footerOutput.writeUTF(name);
+            footerOutput.writeInt(chunks.size());
+            for (var chunk : chunks) {
+                footerOutput.writeLong(chunk.offset);
+                footerOutput.writeInt(chunk.count);
+                footerOutput.writeDouble(chunk.minTime);
+                footerOutput.writeDouble(chunk.maxTime);
+            }
+            footerOutput.writeLong(footerOffset);
+            footerOutput.writeInt(MAGIC);
+            write(footer);
+        } finally {
+            output.close();
+            deflater.end();
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    /**
+     * @return a file name for a new recording of a device
+     */
+    static String fileName(String serial, long startMillis) {
+        return String.format("%s-%d.aprf", serial.replaceAll("[^A-Za-z0-9._-]", "_"), startMillis);
+    }
+}
@@ -1,7 +1,5 @@
 package com.android.androidperf;
 
-import javafx.application.Platform;
-import javafx.scene.chart.XYChart;
 import javafx.util.Pair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -12,8 +10,13 @@ import java.nio.ByteOrder;
 
 public class NetworkPerfService extends BasePerfService {
     private static final Logger LOGGER = LogManager.getLogger(NetworkPerfService.class);
+    static final String CHART = "Network";
+    static final String[] SERIES = {"Recv", "Send"};
     private double lastRxBytes = 0;
     private double lastTxBytes = 0;
+    private double lastTime = 0;
+    // reply to the request sent with the batch of the current tick
+    private ServerBatch.Reply pendingReply = null;
 
     static class NetStatsData {
         public long mRxBytes = 0;
@@ -54,33 +57,50 @@ public class NetworkPerfService extends BasePerfService {
     }
 
     Pair<Double, Double> acquireNetworkData() {
-        byte[] byteData = device.sendMSG(String.format("network %d", device.getTargetPackageUid()));
+        byte[] byteData = pendingReply != null ? pendingReply.get()
+                : device.sendMSG(String.format("network %d", device.getTargetPackageUid()));
+        pendingReply = null;
         NetStatsData netStatsData = fromBytes(byteData);
         LOGGER.debug(String.format("rx %d %d, tx %d %d", netStatsData.mRxBytes, netStatsData.mRxPackets, netStatsData.mTxBytes, netStatsData.mTxPackets));
         return new Pair<>((double)netStatsData.mRxBytes/1024., (double)netStatsData.mTxBytes/1024.);
     }
 
+    @Override
+    protected SamplingScheduler.Task scheduleUpdate() {
+        return scheduleAdaptiveSampling(this::update, this::prepare, 0, 250, 5000);
+    }
+
+    @Override
+    void prepare(ServerBatch batch) {
+        pendingReply = batch.add(String.format("network %d", device.getTargetPackageUid()));
+    }
+
+    @Override
+    void end() {
+        super.end();
+        pendingReply = null;
+        lastRxBytes = 0;
+        lastTxBytes = 0;
+        lastTime = 0;
+    }
+
     @Override
     void update() {
         Pair<Double, Double> data = acquireNetworkData();
+        double time = sampleTime();
         double rxBytes = 0.;
         double txBytes = 0.;
 
-        if (lastRxBytes != 0 && lastTxBytes != 0) {
-            rxBytes += data.getKey() - lastRxBytes;
-            txBytes += data.getValue() - lastTxBytes;
+        // samples are not evenly spaced, so traffic is turned into a rate over the real interval
+        if (lastRxBytes != 0 && lastTxBytes != 0 && time > lastTime) {
+            rxBytes += (data.getKey() - lastRxBytes) / (time - lastTime);
+            txBytes += (data.getValue() - lastTxBytes) / (time - lastTime);
         }
         lastRxBytes = data.getKey();
         lastTxBytes = data.getValue();
+        lastTime = time;
 
-        double finalRxBytes = rxBytes;
-        double finalTxBytes = txBytes;
-        Platform.runLater(() -> device.getController()
-                .addDataToChart(
-                        "Network",
-                        new XYChart.Data<>(timer, finalRxBytes),
-                        new XYChart.Data<>(timer, finalTxBytes))
-        );
+        publish(CHART, time, SERIES, rxBytes, txBytes);
 
         super.update();
     }
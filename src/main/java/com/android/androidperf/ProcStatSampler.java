@@ -0,0 +1,262 @@
+package com.android.androidperf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples CPU utilisation of the device and of the target package from jiffy counters.
+ * Every sample is a single read of /proc/stat and /proc/[pid]/stat of the package's processes,
+ * utilisation is the difference to the previous sample, so nothing is forked on the device but cat.
+ */
+class ProcStatSampler {
+    // the package's processes are looked up again this often, to pick up processes started later
+    private static final long PID_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+    // while the package is not running, look for it at most this often
+    private static final long PID_RETRY_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Utilisation over the interval between two samples, in percent of the whole device
+     */
+    static class Sample {
+        final double appUsage;
+        final double totalUsage;
+        // busy percentage of each core by core index, 0 for offline cores
+        final double[] coreUsage;
+
+        Sample(double appUsage, double totalUsage, double[] coreUsage) {
+            this.appUsage = appUsage;
+            this.totalUsage = totalUsage;
+            this.coreUsage = coreUsage;
+        }
+    }
+
+    private final Device device;
+    private String packageName = null;
+    private List<Integer> pids = new ArrayList<>();
+    private long lastPidResolve = 0;
+    private boolean fullPSCapability = true;
+
+    // previous counters: [total, idle] of the aggregate line and of every core, process time per pid
+    private long[] lastTotal = null;
+    private final HashMap<Integer, long[]> lastCores = new HashMap<>();
+    private final HashMap<Integer, Long> lastProcessTimes = new HashMap<>();
+
+    ProcStatSampler(Device device) {
+        this.device = device;
+    }
+
+    /**
+     * Forget previous counters, the next sample starts a new interval
+     */
+    void reset() {
+        lastTotal = null;
+        lastCores.clear();
+        lastProcessTimes.clear();
+        pids = new ArrayList<>();
+        lastPidResolve = 0;
+    }
+
+    /**
+     * @return true once /proc/stat has been read successfully
+     */
+    boolean isAvailable() {
+        return lastTotal != null;
+    }
+
+    /**
+     * @return aggregate jiffies of all cores as of the last sample
+     */
+    long getTotalJiffies() {
+        return lastTotal == null ? 0 : lastTotal[0];
+    }
+
+    /**
+     * @return number of cores online as of the last sample
+     */
+    int getOnlineCores() {
+        return lastCores.size();
+    }
+
+    /**
+     * @return the processes of the target package as of the last lookup
+     */
+    List<Integer> getPids() {
+        return pids;
+    }
+
+    /**
+     * Read the counters once and compute utilisation since the previous call
+     *
+     * @return the sample, or null if this is the first call or /proc/stat is unreadable
+     */
+    Sample sample() {
+        resolvePids();
+
+        StringBuilder cmd = new StringBuilder("cat /proc/stat");
+        for (int pid : pids)
+            cmd.append(" /proc/").append(pid).append("/stat");
+        String info = device.execCmd(cmd.toString());
+
+        long[] total = null;
+        HashMap<Integer, long[]> cores = new HashMap<>();
+        HashMap<Integer, Long> processTimes = new HashMap<>();
+        boolean processGone = false;
+        int lineStart = 0;
+        while (lineStart < info.length()) {
+            int lineEnd = info.indexOf('\n', lineStart);
+            if (lineEnd < 0)
+                lineEnd = info.length();
+            String line = info.substring(lineStart, lineEnd).strip();
+            lineStart = lineEnd + 1;
+
+            if (line.startsWith("cpu")) {
+                long[] counters = parseCPULine(line);
+                if (counters == null)
+                    continue;
+                if (line.startsWith("cpu "))
+                    total = counters;
+                else {
+                    try {
+                        cores.put(Integer.parseInt(line.substring(3, line.indexOf(' '))), counters);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            } else if (line.startsWith("cat:")) {
+                // a process of the package exited since the last lookup
+                processGone = true;
+            } else if (!line.isEmpty() && Character.isDigit(line.charAt(0))) {
+                parseProcessLine(line, processTimes);
+            }
+        }
+        if (processGone)
+            lastPidResolve = 0;
+        if (total == null)
+            return null;
+
+        Sample sample = null;
+        if (lastTotal != null && total[0] > lastTotal[0]) {
+            double totalDelta = total[0] - lastTotal[0];
+            double busyDelta = totalDelta - (total[1] - lastTotal[1]);
+
+            long processDelta = 0;
+            for (var entry : processTimes.entrySet()) {
+                Long last = lastProcessTimes.get(entry.getKey());
+                if (last != null && entry.getValue() >= last)
+                    processDelta += entry.getValue() - last;
+            }
+
+            int coreCount = 0;
+            for (int core : cores.keySet())
+                coreCount = Math.max(coreCount, core + 1);
+            double[] coreUsage = new double[coreCount];
+            for (var entry : cores.entrySet()) {
+                long[] last = lastCores.get(entry.getKey());
+                long[] current = entry.getValue();
+                if (last == null || current[0] <= last[0])
+                    continue;
+                double coreDelta = current[0] - last[0];
+                coreUsage[entry.getKey()] = clamp(100 * (coreDelta - (current[1] - last[1])) / coreDelta);
+            }
+
+            sample = new Sample(clamp(100 * processDelta / totalDelta), clamp(100 * busyDelta / totalDelta), coreUsage);
+        }
+
+        lastTotal = total;
+        lastCores.clear();
+        lastCores.putAll(cores);
+        lastProcessTimes.clear();
+        lastProcessTimes.putAll(processTimes);
+        return sample;
+    }
+
+    /**
+     * Look up the processes of the target package, including its ":"-suffixed sub-processes
+     */
+    private void resolvePids() {
+        String target = device.getTargetPackage();
+        long now = System.nanoTime();
+        if (target == null)
+            return;
+        if (target.equals(packageName) && lastPidResolve != 0) {
+            long interval = pids.isEmpty() ? PID_RETRY_INTERVAL : PID_REFRESH_INTERVAL;
+            if (now - lastPidResolve < interval)
+                return;
+        }
+        if (!target.equals(packageName)) {
+            packageName = target;
+            lastProcessTimes.clear();
+        }
+        lastPidResolve = now;
+
+        String processInfo = device.execCmd(fullPSCapability ? "ps -A" : "ps");
+        if (fullPSCapability && processInfo.contains("bad")) {
+            fullPSCapability = false;
+            processInfo = device.execCmd("ps");
+        }
+        ArrayList<Integer> found = new ArrayList<>();
+        for (String line : processInfo.split("\n")) {
+            String[] columns = line.strip().split("\\s+");
+            if (columns.length < 3)
+                continue;
+            String name = columns[columns.length - 1];
+            if (!name.equals(target) && !name.startsWith(target + ":"))
+                continue;
+            try {
+                found.add(Integer.parseInt(columns[1]));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        pids = found;
+    }
+
+    /**
+     * Parse a line such as "cpu0 2255 34 2290 22625563 6290 127 456 0 0 0"
+     *
+     * @return [total, idle] jiffies, or null if the line is malformed
+     */
+    private static long[] parseCPULine(String line) {
+        String[] columns = line.split("\\s+");
+        if (columns.length < 5)
+            return null;
+        long total = 0;
+        long idle = 0;
+        try {
+            // user nice system idle iowait irq softirq steal, guest time is already part of user time
+            for (int i = 1; i < Math.min(columns.length, 9); i++) {
+                long value = Long.parseLong(columns[i]);
+                total += value;
+                if (i == 4 || i == 5)
+                    idle += value;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new long[]{total, idle};
+    }
+
+    /**
+     * Parse the utime and stime fields of a /proc/[pid]/stat line.
+     * The command name in parentheses may contain spaces, so fields are counted after the last ')'.
+     */
+    private static void parseProcessLine(String line, HashMap<Integer, Long> processTimes) {
+        int nameEnd = line.lastIndexOf(')');
+        int pidEnd = line.indexOf(' ');
+        if (nameEnd < 0 || pidEnd < 0 || pidEnd > nameEnd)
+            return;
+        String[] fields = line.substring(nameEnd + 1).strip().split(" ");
+        // fields[0] is the state, utime and stime are the 14th and 15th fields of the line
+        if (fields.length < 13)
+            return;
+        try {
+            int pid = Integer.parseInt(line.substring(0, pidEnd));
+            processTimes.put(pid, Long.parseLong(fields[11]) + Long.parseLong(fields[12]));
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    private static double clamp(double usage) {
+        return Math.max(0, Math.min(100, usage));
+    }
+}
@@ -0,0 +1,99 @@
+package com.android.androidperf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that accumulates a reply from a stream and locates its terminator.
+ * The terminator search resumes where the previous one stopped,
+ * so decoding a reply is linear in its size regardless of how it is chunked.
+ */
+class ReplyBuffer {
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int MIN_READ_SIZE = 1024;
+    // buffers grown beyond this are dropped on reset, so a single huge reply does not pin memory
+    private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+
+    private final byte[] terminator;
+    private byte[] data = new byte[INITIAL_CAPACITY];
+    private int size = 0;
+    private int searchFrom = 0;
+
+    ReplyBuffer(byte[] terminator) {
+        this.terminator = terminator;
+    }
+
+    /**
+     * Read once from the stream straight into the buffer
+     *
+     * @param in stream to read from
+     * @return number of bytes read, or -1 at the end of the stream
+     */
+    int readFrom(InputStream in) throws IOException {
+        if (data.length - size < MIN_READ_SIZE)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + MIN_READ_SIZE));
+        int len = in.read(data, size, data.length - size);
+        if (len > 0)
+            size += len;
+        return len;
+    }
+
+    /**
+     * Find the terminator in the bytes accumulated so far
+     *
+     * @return offset of the terminator, or -1 if it has not arrived yet
+     */
+    int findTerminator() {
+        int last = size - terminator.length;
+        byte first = terminator[0];
+        for (int i = searchFrom; i <= last; i++) {
+            if (data[i] != first)
+                continue;
+            int j = 1;
+            while (j < terminator.length && data[i + j] == terminator[j])
+                j++;
+            if (j == terminator.length) {
+                searchFrom = i;
+                return i;
+            }
+        }
+        // a partially received terminator may start within the tail
+        searchFrom = Math.max(searchFrom, last + 1);
+        return -1;
+    }
+
+    /**
+     * Copy out the bytes before {@code end}
+     */
+    byte[] copyOf(int end) {
+        return Arrays.copyOf(data, end);
+    }
+
+    /**
+     * Drop the first {@code count} bytes, keeping what was read beyond them for the next reply
+     */
+    void discard(int count) {
+        System.arraycopy(data, count, data, 0, size - count);
+        size -= count;
+        searchFrom = 0;
+    }
+
+    /**
+     * @return length of the terminator
+     */
+    int terminatorLength() {
+        return terminator.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void reset() {
+        if (data.length > MAX_RETAINED_CAPACITY)
+            data = new byte[INITIAL_CAPACITY];
+        size = 0;
+        searchFrom = 0;
+    }
+}
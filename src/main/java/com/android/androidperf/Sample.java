@@ -0,0 +1,19 @@
+package com.android.androidperf;
+
+/**
+ * Values of the series of one chart at one point in time
+ */
+class Sample {
+    final String chartName;
+    // seconds since profiling began
+    final double time;
+    final String[] series;
+    final double[] values;
+
+    Sample(String chartName, double time, String[] series, double[] values) {
+        this.chartName = chartName;
+        this.time = time;
+        this.series = series;
+        this.values = values;
+    }
+}
@@ -0,0 +1,290 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs the periodic sampling tasks of all devices on one timer thread and a small worker pool.
+ * Ticks of the same device that fall into the same window are coalesced into a single job,
+ * and every device gets its own job, so a slow device cannot occupy the whole pool.
+ * A task whose previous run has not finished skips its tick instead of piling up.
+ * Adaptive tasks derive their period from how long they take to run,
+ * so that sampling never keeps a device busy for more than a fixed share of the time.
+ * Before the tasks of a device job run, they add their server requests to one {@link ServerBatch},
+ * which is sent in a single round trip.
+ */
+class SamplingScheduler {
+    private static final Logger LOGGER = LogManager.getLogger(SamplingScheduler.class);
+    // ticks due within this window of each other run together
+    private static final long COALESCE_WINDOW = TimeUnit.MILLISECONDS.toNanos(20);
+    // an adaptive task waits this many times its own run time between runs
+    private static final int ADAPTIVE_DUTY_FACTOR = 10;
+    private static final double SMOOTHING = 0.3;
+    private static final int WORKER_COUNT = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    private static final SamplingScheduler INSTANCE = new SamplingScheduler();
+
+    private final Object lock = new Object();
+    private final PriorityQueue<Task> queue = new PriorityQueue<>(Comparator.comparingLong(t -> t.nextRun));
+    private final ThreadPoolExecutor workers;
+    private final Thread timer;
+    private volatile boolean isShutdown = false;
+
+    /**
+     * A periodic task registered with the scheduler
+     */
+    static class Task {
+        private final Device device;
+        private final Runnable action;
+        // adds the server requests of the next run to the batch of its tick, may be null
+        private final Consumer<ServerBatch> prepare;
+        private final long minPeriod;
+        private final long maxPeriod;
+        private volatile long period;
+        private long nextRun;
+        private volatile boolean cancelled = false;
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        // smoothed run time and interval between run starts, in nanoseconds
+        private double runTime = 0;
+        private double interval = 0;
+        private long lastStart = 0;
+        // start of the current run, and the time spent on it before the action itself
+        private long start = 0;
+        private long preparationTime = 0;
+
+        private Task(Device device, Runnable action, Consumer<ServerBatch> prepare, long initialDelay, long period,
+                     long minPeriod, long maxPeriod) {
+            this.device = device;
+            this.action = action;
+            this.prepare = prepare;
+            this.period = TimeUnit.MILLISECONDS.toNanos(period);
+            this.minPeriod = TimeUnit.MILLISECONDS.toNanos(minPeriod);
+            this.maxPeriod = TimeUnit.MILLISECONDS.toNanos(maxPeriod);
+            this.nextRun = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelay);
+        }
+
+        /**
+         * @return current period between runs in milliseconds
+         */
+        long getPeriod() {
+            return TimeUnit.NANOSECONDS.toMillis(period);
+        }
+
+        /**
+         * @return the rate the task actually ran at recently, in runs per second
+         */
+        synchronized double getAchievedRate() {
+            return interval == 0 ? 0 : 1e9 / interval;
+        }
+
+        /**
+         * Stop scheduling the task, a run in progress is not interrupted
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return false if the task is cancelled or its previous run has not finished, it must not run then
+         */
+        private boolean tryStart() {
+            if (cancelled || !running.compareAndSet(false, true))
+                return false;
+            start = System.nanoTime();
+            preparationTime = 0;
+            return true;
+        }
+
+        /**
+         * @return true if the task added requests to the batch
+         */
+        private boolean prepare(ServerBatch batch) {
+            if (prepare == null)
+                return false;
+            int size = batch.size();
+            long prepareStart = System.nanoTime();
+            try {
+                prepare.accept(batch);
+            } catch (Throwable e) {
+                LOGGER.error("Sampling task failed to prepare", e);
+            }
+            preparationTime += System.nanoTime() - prepareStart;
+            return batch.size() > size;
+        }
+
+        private void finish() {
+            long actionStart = System.nanoTime();
+            try {
+                if (!cancelled)
+                    action.run();
+            } catch (Throwable e) {
+                LOGGER.error("Sampling task failed", e);
+            } finally {
+                // the other tasks of the job do not count towards the run time
+                adapt(start, preparationTime + System.nanoTime() - actionStart);
+                running.set(false);
+            }
+        }
+
+        private synchronized void adapt(long start, long elapsed) {
+            runTime = runTime == 0 ? elapsed : runTime + SMOOTHING * (elapsed - runTime);
+            if (lastStart != 0)
+                interval = interval == 0 ? start - lastStart : interval + SMOOTHING * ((start - lastStart) - interval);
+            lastStart = start;
+            if (minPeriod != maxPeriod)
+                period = Math.max(minPeriod, Math.min(maxPeriod, (long) (runTime * ADAPTIVE_DUTY_FACTOR)));
+        }
+    }
+
+    private SamplingScheduler() {
+        AtomicInteger workerId = new AtomicInteger();
+        workers = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "sampling-worker-" + workerId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        workers.allowCoreThreadTimeOut(true);
+        timer = new Thread(this::runTimer, "sampling-timer");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    static SamplingScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Register a periodic task
+     *
+     * @param device       the device the task samples, or null if it is not bound to a device
+     * @param action       the task
+     * @param initialDelay delay before the first run in milliseconds
+     * @param period       period between runs in milliseconds
+     * @return the handle to cancel the task
+     */
+    Task schedule(Device device, Runnable action, long initialDelay, long period) {
+        return enqueue(new Task(device, action, null, initialDelay, period, period, period));
+    }
+
+    /**
+     * Register a periodic task whose period follows its run time, sampling faster when the
+     * device responds quickly and slowing down when it does not
+     *
+     * @param device       the device the task samples, or null if it is not bound to a device
+     * @param action       the task
+     * @param prepare      adds the server requests of the next run to the batch of its tick, may be null
+     * @param initialDelay delay before the first run in milliseconds
+     * @param minPeriod    shortest period in milliseconds
+     * @param maxPeriod    longest period in milliseconds
+     * @return the handle to cancel the task
+     */
+    Task scheduleAdaptive(Device device, Runnable action, Consumer<ServerBatch> prepare, long initialDelay,
+                          long minPeriod, long maxPeriod) {
+        long period = Math.max(minPeriod, Math.min(maxPeriod, 1000));
+        return enqueue(new Task(device, action, prepare, initialDelay, period, minPeriod, maxPeriod));
+    }
+
+    private Task enqueue(Task task) {
+        synchronized (lock) {
+            if (isShutdown)
+                throw new RejectedExecutionException("Sampling scheduler is shut down");
+            queue.add(task);
+            lock.notifyAll();
+        }
+        return task;
+    }
+
+    private void runTimer() {
+        while (!isShutdown) {
+            Map<Device, List<Task>> jobs;
+            synchronized (lock) {
+                long now = System.nanoTime();
+                Task head = queue.peek();
+                if (head == null || head.nextRun > now) {
+                    try {
+                        if (head == null)
+                            lock.wait();
+                        else
+                            TimeUnit.NANOSECONDS.timedWait(lock, head.nextRun - now);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                jobs = collectDueTasks(now);
+            }
+            for (var job : jobs.entrySet())
+                workers.execute(() -> runJob(job.getKey(), job.getValue()));
+        }
+    }
+
+    /**
+     * Run the due tasks of a device, their server requests go out together before any of them runs
+     */
+    private void runJob(Device device, List<Task> job) {
+        ArrayList<Task> started = new ArrayList<>(job.size());
+        for (var task : job) {
+            if (task.tryStart())
+                started.add(task);
+        }
+        if (device != null) {
+            ServerBatch batch = new ServerBatch(device);
+            ArrayList<Task> requesting = new ArrayList<>();
+            for (var task : started) {
+                if (task.prepare(batch))
+                    requesting.add(task);
+            }
+            long sendStart = System.nanoTime();
+            batch.send();
+            long sendTime = System.nanoTime() - sendStart;
+            // the round trip is shared, but each task would have waited for it anyway
+            for (var task : requesting)
+                task.preparationTime += sendTime;
+        }
+        for (var task : started)
+            task.finish();
+    }
+
+    /**
+     * Take the tasks due within the coalescing window, grouped by device, and reschedule them
+     */
+    private Map<Device, List<Task>> collectDueTasks(long now) {
+        Map<Device, List<Task>> jobs = new HashMap<>();
+        ArrayList<Task> rescheduled = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().nextRun <= now + COALESCE_WINDOW) {
+            Task task = queue.poll();
+            if (task.cancelled)
+                continue;
+            // missed ticks are dropped rather than run back to back
+            task.nextRun += task.period;
+            if (task.nextRun < now)
+                task.nextRun = now + task.period;
+            rescheduled.add(task);
+            if (!task.running.get())
+                jobs.computeIfAbsent(task.device, d -> new ArrayList<>()).add(task);
+        }
+        queue.addAll(rescheduled);
+        return jobs;
+    }
+
+    /**
+     * Stop all tasks, used upon app close
+     */
+    void shutdown() {
+        synchronized (lock) {
+            isShutdown = true;
+            queue.clear();
+            lock.notifyAll();
+        }
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,140 @@
+package com.android.androidperf;
+
+/**
+ * Points of one chart series in a bounded ring, oldest dropped first.
+ * The maximum is kept up to date as points come and go, and the points can be
+ * decimated to about as many as the chart has pixels.
+ */
+class SeriesBuffer {
+    private final double[] xs;
+    private final double[] ys;
+    // sequence number of the oldest point, and of the next point to be added
+    private long head = 0;
+    private long tail = 0;
+    // sequence numbers of the points that may still become the maximum, their values decreasing
+    private final long[] maxQueue;
+    private int maxHead = 0;
+    private int maxSize = 0;
+    private int addedSinceDecimation = 0;
+
+    SeriesBuffer(int capacity) {
+        xs = new double[capacity];
+        ys = new double[capacity];
+        maxQueue = new long[capacity];
+    }
+
+    void add(double x, double y) {
+        int capacity = xs.length;
+        if (tail - head == capacity) {
+            if (maxSize > 0 && maxQueue[maxHead] == head) {
+                maxHead = (maxHead + 1) % capacity;
+                maxSize--;
+            }
+            head++;
+        }
+        while (maxSize > 0 && ys[index(maxQueue[(maxHead + maxSize - 1) % capacity])] <= y)
+            maxSize--;
+        xs[index(tail)] = x;
+        ys[index(tail)] = y;
+        maxQueue[(maxHead + maxSize) % capacity] = tail;
+        maxSize++;
+        tail++;
+        addedSinceDecimation++;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % xs.length);
+    }
+
+    int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return true once points were dropped to make room
+     */
+    boolean hasDropped() {
+        return head > 0;
+    }
+
+    /**
+     * @param i index of the point, 0 being the oldest
+     */
+    double getX(int i) {
+        return xs[index(head + i)];
+    }
+
+    double getY(int i) {
+        return ys[index(head + i)];
+    }
+
+    /**
+     * @return the largest y value, or NaN if there is no point
+     */
+    double getMax() {
+        return maxSize == 0 ? Double.NaN : ys[index(maxQueue[maxHead])];
+    }
+
+    /**
+     * @return the number of points added since the last {@link #decimate(int)}
+     */
+    int getAddedSinceDecimation() {
+        return addedSinceDecimation;
+    }
+
+    /**
+     * Pick the points that best keep the shape of the series, with Largest-Triangle-Three-Buckets:
+     * the first and last points are kept, and from each bucket in between the point forming the
+     * largest triangle with the point picked before and the average of the next bucket.
+     *
+     * @param threshold number of points wanted, at least 3
+     * @return indices of the picked points, all of them if there are no more than the threshold
+     */
+    int[] decimate(int threshold) {
+        addedSinceDecimation = 0;
+        int size = size();
+        if (size <= threshold || threshold < 3) {
+            int[] all = new int[size];
+            for (int i = 0; i < size; i++)
+                all[i] = i;
+            return all;
+        }
+
+        int[] picked = new int[threshold];
+        double bucketSize = (double) (size - 2) / (threshold - 2);
+        int a = 0;
+        picked[0] = 0;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = (int) ((bucket + 1) * bucketSize) + 1;
+            int nextStart = end;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, size);
+
+            double avgX = 0;
+            double avgY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                avgX += getX(i);
+                avgY += getY(i);
+            }
+            int nextCount = nextEnd - nextStart;
+            avgX /= nextCount;
+            avgY /= nextCount;
+
+            double ax = getX(a);
+            double ay = getY(a);
+            double maxArea = -1;
+            int next = start;
+            for (int i = start; i < end; i++) {
+                double area = Math.abs((ax - avgX) * (getY(i) - ay) - (ax - getX(i)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = i;
+                }
+            }
+            picked[bucket + 1] = next;
+            a = next;
+        }
+        picked[threshold - 1] = size - 1;
+        return picked;
+    }
+}
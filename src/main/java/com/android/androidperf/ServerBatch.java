@@ -0,0 +1,71 @@
+package com.android.androidperf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server requests of the sampling tasks of one device that are due at the same tick.
+ * Tasks add their requests while preparing, the batch is sent in one go, and every task
+ * then reads its own replies, so a tick costs one round trip however many services ask.
+ */
+class ServerBatch {
+    private final Device device;
+    private final ArrayList<Reply> pending = new ArrayList<>();
+
+    /**
+     * Reply to one request of the batch
+     */
+    class Reply {
+        private final String request;
+        private byte[] data = null;
+
+        private Reply(String request) {
+            this.request = request;
+        }
+
+        /**
+         * @return the reply, empty if the request failed. A request the batch did not send,
+         * such as one added after the batch went out, is sent on its own.
+         */
+        byte[] get() {
+            if (data == null)
+                data = device.sendMSG(request);
+            return data;
+        }
+    }
+
+    ServerBatch(Device device) {
+        this.device = device;
+    }
+
+    /**
+     * Add a request to the batch
+     *
+     * @param request request to be sent, as for {@link Device#sendMSG(String)}
+     * @return the reply, available once the batch has been sent
+     */
+    Reply add(String request) {
+        Reply reply = new Reply(request);
+        pending.add(reply);
+        return reply;
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    /**
+     * Send all requests added so far
+     */
+    void send() {
+        if (pending.isEmpty())
+            return;
+        ArrayList<String> requests = new ArrayList<>(pending.size());
+        for (var reply : pending)
+            requests.add(reply.request);
+        List<byte[]> replies = device.sendMSGs(requests);
+        for (int i = 0; i < pending.size(); i++)
+            pending.get(i).data = replies.get(i);
+        pending.clear();
+    }
+}
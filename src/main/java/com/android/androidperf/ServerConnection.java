@@ -0,0 +1,277 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Long-lived channel to the AndroidPerf server through the adb forward on {@code port}.
+ * Sockets are kept open and reused across requests, and every in-flight request owns
+ * one socket, so several services can talk to the server at the same time.
+ * Requests of the same tick can also be written back to back on one socket,
+ * if the server turns out to answer them in order.
+ */
+class ServerConnection implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(ServerConnection.class);
+    static final String MSG_END = "PERF_MSG_END\n";
+    private static final byte[] MSG_END_BYTES = MSG_END.getBytes();
+    private static final int SOCKET_TIMEOUT = 5000;
+    private static final int MAX_IDLE_SOCKETS = 4;
+    // a server that handles pipelined requests answers the probe well within this
+    private static final int PROBE_TIMEOUT = 1000;
+
+    private final int port;
+    private final ConcurrentLinkedDeque<Channel> idleChannels = new ConcurrentLinkedDeque<>();
+    // cleared once the server is seen closing a socket after a reply, sockets are then used only once
+    private volatile boolean keepAlive = true;
+    // whether the server answers requests written back to back on one socket, null until probed
+    private volatile Boolean pipelining = null;
+    private volatile boolean closed = false;
+
+    /**
+     * A socket to the server together with its reusable reply buffer
+     */
+    private static class Channel {
+        final Socket socket;
+        final ReplyBuffer replyBuffer = new ReplyBuffer(MSG_END_BYTES);
+
+        Channel(Socket socket) {
+            this.socket = socket;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    ServerConnection(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Send a request to the server and wait for its reply
+     *
+     * @param data request to be sent, without the message terminator
+     * @return reply message, or an empty array if the server closed the connection without replying
+     * @throws IOException if the server cannot be reached
+     */
+    byte[] request(String data) throws IOException {
+        if (closed)
+            throw new IOException("Connection to server is closed");
+
+        Channel channel = idleChannels.pollFirst();
+        if (channel != null) {
+            try {
+                byte[] reply = exchange(channel, data);
+                if (reply != null) {
+                    release(channel);
+                    return reply;
+                }
+            } catch (SocketTimeoutException e) {
+                // a slow reply says nothing about whether the server keeps sockets open
+                channel.close();
+                throw e;
+            } catch (IOException e) {
+                LOGGER.debug("Reused server socket is stale, reconnecting", e);
+            }
+            // retry once on a fresh socket
+            channel.close();
+            // only a socket closed or reset before any byte of the reply was dropped by the server while idle
+            if (keepAlive && channel.replyBuffer.size() == 0) {
+                LOGGER.info("Server does not keep connections alive, falling back to one socket per request");
+                keepAlive = false;
+                clearIdle();
+            }
+        }
+
+        channel = open();
+        try {
+            byte[] reply = exchange(channel, data);
+            if (reply == null) {
+                channel.close();
+                return new byte[0];
+            }
+            release(channel);
+            return reply;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send several requests back to back on one socket and read their replies in order,
+     * which takes a single round trip
+     *
+     * @param requests requests to be sent, without the message terminator
+     * @return reply of each request, or null if the server cannot take pipelined requests
+     * @throws IOException if the server cannot be reached
+     */
+    List<byte[]> requestPipelined(List<String> requests) throws IOException {
+        if (closed)
+            throw new IOException("Connection to server is closed");
+        if (pipelining == null)
+            probePipelining();
+        if (!keepAlive || !pipelining)
+            return null;
+
+        Channel channel = idleChannels.pollFirst();
+        if (channel != null) {
+            try {
+                List<byte[]> replies = exchangeAll(channel, requests);
+                if (replies != null) {
+                    releaseAfterBatch(channel);
+                    return replies;
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Reused server socket is stale, reconnecting", e);
+            }
+            channel.close();
+        }
+
+        channel = open();
+        try {
+            List<byte[]> replies = exchangeAll(channel, requests);
+            if (replies == null) {
+                channel.close();
+                replies = new ArrayList<>(requests.size());
+                for (int i = 0; i < requests.size(); i++)
+                    replies.add(new byte[0]);
+                return replies;
+            }
+            releaseAfterBatch(channel);
+            return replies;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Find out once whether the server answers pipelined requests, by sending two PINGs at once
+     */
+    private synchronized void probePipelining() throws IOException {
+        if (pipelining != null)
+            return;
+        Channel channel = open();
+        try {
+            channel.socket.setSoTimeout(PROBE_TIMEOUT);
+            List<byte[]> replies = exchangeAll(channel, List.of("PING", "PING"));
+            pipelining = replies != null && new String(replies.get(0)).contains("OKAY")
+                    && new String(replies.get(1)).contains("OKAY") && channel.replyBuffer.size() == 0;
+        } catch (IOException e) {
+            // a server that closes or resets the socket with the second request unread does not pipeline either
+            LOGGER.debug("Pipelining probe failed", e);
+            pipelining = false;
+        } finally {
+            // the probe may have left the server out of step, the socket is not reused
+            channel.close();
+        }
+        if (!pipelining)
+            LOGGER.info("Server does not take pipelined requests, sending them on parallel sockets");
+    }
+
+    private void releaseAfterBatch(Channel channel) {
+        // bytes beyond the last reply mean the socket is out of step with the server
+        if (channel.replyBuffer.size() != 0)
+            channel.close();
+        else
+            release(channel);
+    }
+
+    private Channel open() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(SOCKET_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        return new Channel(socket);
+    }
+
+    private void release(Channel channel) {
+        if (closed || !keepAlive || idleChannels.size() >= MAX_IDLE_SOCKETS) {
+            channel.close();
+            return;
+        }
+        idleChannels.offerFirst(channel);
+        // close() may have drained the pool concurrently
+        if (closed)
+            clearIdle();
+    }
+
+    /**
+     * Write one request and read the reply up to the message terminator
+     *
+     * @return the reply, or null if the server closed the socket before terminating the reply
+     */
+    private byte[] exchange(Channel channel, String data) throws IOException {
+        ReplyBuffer replyBuffer = channel.replyBuffer;
+        replyBuffer.reset();
+        OutputStream outputStream = channel.socket.getOutputStream();
+        outputStream.write((data + MSG_END).getBytes());
+        outputStream.flush();
+
+        InputStream inputStream = channel.socket.getInputStream();
+        while (true) {
+            int len = replyBuffer.readFrom(inputStream);
+            int msgEnd = replyBuffer.findTerminator();
+            if (msgEnd != -1) {
+                return replyBuffer.copyOf(msgEnd);
+            }
+            if (len == -1) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Write all requests at once and read the replies in order
+     *
+     * @return the replies, or null if the server closed the socket before terminating them all
+     */
+    private List<byte[]> exchangeAll(Channel channel, List<String> requests) throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (String request : requests)
+            data.append(request).append(MSG_END);
+        OutputStream outputStream = channel.socket.getOutputStream();
+        outputStream.write(data.toString().getBytes());
+        outputStream.flush();
+
+        InputStream inputStream = channel.socket.getInputStream();
+        ReplyBuffer replyBuffer = channel.replyBuffer;
+        replyBuffer.reset();
+        ArrayList<byte[]> replies = new ArrayList<>(requests.size());
+        while (replies.size() < requests.size()) {
+            int msgEnd = replyBuffer.findTerminator();
+            if (msgEnd != -1) {
+                replies.add(replyBuffer.copyOf(msgEnd));
+                replyBuffer.discard(msgEnd + replyBuffer.terminatorLength());
+                continue;
+            }
+            if (replyBuffer.readFrom(inputStream) == -1)
+                return null;
+        }
+        return replies;
+    }
+
+    private void clearIdle() {
+        Channel channel;
+        while ((channel = idleChannels.pollFirst()) != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        clearIdle();
+    }
+}
@@ -0,0 +1,81 @@
+package com.android.androidperf;
+
+import se.vidstige.jadb.ShellChannel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * One long-lived shell on the device that runs commands written to its input.
+ * The output of every command is closed by a sentinel line unique to the session,
+ * so several commands can be written at once and their outputs told apart afterwards.
+ */
+class ShellSession implements Closeable {
+    // a command producing no output for this long is considered hung, and the session is dropped
+    private static final int READ_TIMEOUT = 15000;
+
+    private final ShellChannel channel;
+    private final String sentinel;
+    private final ReplyBuffer replyBuffer;
+
+    ShellSession(ShellChannel channel) throws IOException {
+        this.channel = channel;
+        this.sentinel = "PERF_SHELL_END_" + UUID.randomUUID().toString().replace("-", "");
+        this.replyBuffer = new ReplyBuffer(("\n" + sentinel + "\n").getBytes(StandardCharsets.US_ASCII));
+        channel.setTimeout(READ_TIMEOUT);
+    }
+
+    /**
+     * Run commands one after another and collect their outputs
+     *
+     * @param cmds     commands, each run with stdin closed and stderr merged into stdout
+     * @param outputs  empty list receiving the output of each command as it completes, it holds the completed ones if the run fails
+     * @param onOutput called with the index and output of each command as soon as it completes, may be null
+     * @throws IOException if the shell died or a command hung, the session is unusable afterwards
+     */
+    void run(List<String> cmds, List<String> outputs, BiConsumer<Integer, String> onOutput) throws IOException {
+        StringBuilder script = new StringBuilder();
+        for (String cmd : cmds) {
+            // an empty group is a syntax error, which would end the shell
+            if (cmd.isBlank())
+                cmd = ":";
+            // the extra echo puts the sentinel on its own line even if the output does not end with one
+            script.append("{ ").append(cmd).append("\n} </dev/null 2>&1; echo; echo ").append(sentinel).append('\n');
+        }
+        OutputStream outputStream = channel.getOutputStream();
+        outputStream.write(script.toString().getBytes(StandardCharsets.UTF_8));
+        outputStream.flush();
+
+        InputStream inputStream = channel.getInputStream();
+        for (int i = 0; i < cmds.size(); i++) {
+            while (true) {
+                int end = replyBuffer.findTerminator();
+                if (end != -1) {
+                    String output = new String(replyBuffer.copyOf(end), StandardCharsets.UTF_8);
+                    replyBuffer.discard(end + replyBuffer.terminatorLength());
+                    outputs.add(output);
+                    if (onOutput != null)
+                        onOutput.accept(i, output);
+                    break;
+                }
+                if (replyBuffer.readFrom(inputStream) == -1)
+                    throw new IOException("Shell session closed by device");
+            }
+        }
+        replyBuffer.reset();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.android.androidperf;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.BiConsumer;
+
+/**
+ * Shell sessions of one device kept open across commands, so running a command
+ * does not set up a new adb transport. Every command in flight owns one session.
+ */
+class ShellSessionPool implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(ShellSessionPool.class);
+    private static final int MAX_IDLE_SESSIONS = 3;
+
+    private final JadbDevice device;
+    private final ConcurrentLinkedDeque<ShellSession> idleSessions = new ConcurrentLinkedDeque<>();
+    // cleared if the device cannot open a shell, commands are then left to one-shot execution
+    private volatile boolean supported = true;
+    private volatile boolean closed = false;
+
+    ShellSessionPool(JadbDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Run commands over a pooled session, writing them all before reading any output
+     *
+     * @param cmds     commands to run in order
+     * @param onOutput called with the index and output of each command as soon as it completes, may be null
+     * @return output of each command, only of the first ones if the session died partway, or null if no session could be opened
+     */
+    List<String> execBatch(List<String> cmds, BiConsumer<Integer, String> onOutput) {
+        if (closed || !supported)
+            return null;
+
+        ShellSession session = idleSessions.pollFirst();
+        if (session == null) {
+            try {
+                session = new ShellSession(device.openShell());
+            } catch (JadbException e) {
+                LOGGER.info("Device does not support long-lived shells, running commands one by one", e);
+                supported = false;
+                return null;
+            } catch (IOException e) {
+                LOGGER.warn("Cannot open shell session", e);
+                return null;
+            }
+        }
+
+        ArrayList<String> outputs = new ArrayList<>(cmds.size());
+        try {
+            session.run(cmds, outputs, onOutput);
+            release(session);
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Shell session failed after %d of %d commands, dropping it", outputs.size(), cmds.size()), e);
+            session.close();
+        }
+        return outputs;
+    }
+
+    private void release(ShellSession session) {
+        if (closed || idleSessions.size() >= MAX_IDLE_SESSIONS) {
+            session.close();
+            return;
+        }
+        idleSessions.offerFirst(session);
+        // close() may have drained the pool concurrently
+        if (closed)
+            clearIdle();
+    }
+
+    private void clearIdle() {
+        ShellSession session;
+        while ((session = idleSessions.pollFirst()) != null) {
+            session.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        clearIdle();
+    }
+}
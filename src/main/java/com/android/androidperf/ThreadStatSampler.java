@@ -0,0 +1,182 @@
+package com.android.androidperf;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the CPU utilisation of every thread of the target package from /proc/[pid]/task/[tid]/stat.
+ * All threads are read only every few seconds, in between only the threads that were busy during
+ * the last full scan are read, so large processes do not cost one read per thread on every tick.
+ */
+class ThreadStatSampler {
+    private static final long FULL_SCAN_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    // upper limit of threads read on every tick
+    private static final int MAX_HOT_THREADS = 32;
+    private static final String PROCESS_MARKER = "PROCESS ";
+
+    /**
+     * A thread of the target package
+     */
+    static class ThreadInfo {
+        final int pid;
+        final int tid;
+        String name;
+        // cpu time of the thread and the aggregate jiffies of the device at the last read
+        long time = -1;
+        long readAt = -1;
+        // percentage of one core used since the previous read
+        double usage = 0;
+
+        ThreadInfo(int pid, int tid) {
+            this.pid = pid;
+            this.tid = tid;
+        }
+
+        /**
+         * @return a label telling apart threads of the same name, the main thread is named after its role
+         */
+        String getLabel() {
+            return String.format("%s (%d)", pid == tid ? "main" : name, tid);
+        }
+    }
+
+    private final Device device;
+    private final HashMap<Integer, ThreadInfo> threads = new HashMap<>();
+    private List<ThreadInfo> hotThreads = new ArrayList<>();
+    private long lastFullScan = 0;
+    // cpu time of the line last parsed by parseTaskLine
+    private long parsedTime;
+
+    ThreadStatSampler(Device device) {
+        this.device = device;
+    }
+
+    void reset() {
+        threads.clear();
+        hotThreads = new ArrayList<>();
+        lastFullScan = 0;
+    }
+
+    /**
+     * @return the thread, or null if the last full scan did not see it
+     */
+    ThreadInfo getThread(int tid) {
+        return threads.get(tid);
+    }
+
+    /**
+     * Read the threads due for this tick and compute their utilisation since they were read last
+     *
+     * @param pids         processes of the target package
+     * @param totalJiffies aggregate jiffies of all cores at this tick, from /proc/stat
+     * @param cores        number of online cores
+     * @return the threads read this tick, busiest first
+     */
+    List<ThreadInfo> sample(List<Integer> pids, long totalJiffies, int cores) {
+        if (pids.isEmpty() || cores <= 0)
+            return Collections.emptyList();
+
+        long now = System.nanoTime();
+        boolean fullScan = lastFullScan == 0 || now - lastFullScan >= FULL_SCAN_INTERVAL;
+        if (!fullScan && hotThreads.isEmpty())
+            return Collections.emptyList();
+        StringBuilder cmd = new StringBuilder();
+        if (fullScan) {
+            lastFullScan = now;
+            // the loop marks which process the following threads belong to
+            cmd.append("for p in");
+            for (int pid : pids)
+                cmd.append(' ').append(pid);
+            cmd.append("; do echo ").append(PROCESS_MARKER).append("$p; cat /proc/$p/task/*/stat; done");
+        } else {
+            cmd.append("cat");
+            for (var thread : hotThreads)
+                cmd.append(" /proc/").append(thread.pid).append("/task/").append(thread.tid).append("/stat");
+        }
+        String info = device.execCmd(cmd.toString());
+
+        ArrayList<ThreadInfo> read = new ArrayList<>();
+        boolean measured = false;
+        int pid = -1;
+        for (String line : info.split("\n")) {
+            line = line.strip();
+            if (line.startsWith(PROCESS_MARKER)) {
+                try {
+                    pid = Integer.parseInt(line.substring(PROCESS_MARKER.length()));
+                } catch (NumberFormatException e) {
+                    pid = -1;
+                }
+                continue;
+            }
+            ThreadInfo thread = parseTaskLine(line, fullScan ? pid : -1);
+            if (thread == null)
+                continue;
+            long previousTime = thread.time;
+            long previousReadAt = thread.readAt;
+            thread.time = parsedTime;
+            thread.readAt = totalJiffies;
+            thread.usage = 0;
+            if (previousTime >= 0 && totalJiffies > previousReadAt && thread.time >= previousTime) {
+                double jiffiesPerCore = (double) (totalJiffies - previousReadAt) / cores;
+                thread.usage = Math.min(100, 100 * (thread.time - previousTime) / jiffiesPerCore);
+                measured = true;
+            }
+            read.add(thread);
+        }
+
+        if (fullScan) {
+            // forget exited threads and pick the busy ones to follow until the next scan
+            HashSet<Integer> seen = new HashSet<>();
+            for (var thread : read)
+                seen.add(thread.tid);
+            threads.keySet().retainAll(seen);
+            ArrayList<ThreadInfo> busy = new ArrayList<>();
+            for (var thread : read) {
+                if (thread.usage > 0)
+                    busy.add(thread);
+            }
+            busy.sort((a, b) -> Double.compare(b.usage, a.usage));
+            hotThreads = new ArrayList<>(busy.subList(0, Math.min(busy.size(), MAX_HOT_THREADS)));
+            // a first scan only takes the baseline, scan again on the next tick to find the busy threads
+            if (!measured)
+                lastFullScan = 0;
+        }
+
+        read.sort((a, b) -> Double.compare(b.usage, a.usage));
+        return read;
+    }
+
+    /**
+     * Parse a task stat line such as "4321 (RenderThread) S 1234 ... utime stime ..."
+     *
+     * @param pid the process the line belongs to, or -1 if the thread must be known already
+     * @return the thread, or null if the line is not a known thread
+     */
+    private ThreadInfo parseTaskLine(String line, int pid) {
+        int nameStart = line.indexOf(" (");
+        int nameEnd = line.lastIndexOf(')');
+        if (nameStart <= 0 || nameEnd < nameStart)
+            return null;
+        String[] fields = line.substring(nameEnd + 1).strip().split(" ");
+        if (fields.length < 13)
+            return null;
+        int tid;
+        try {
+            tid = Integer.parseInt(line.substring(0, nameStart));
+            parsedTime = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        ThreadInfo thread = threads.get(tid);
+        if (thread == null) {
+            if (pid < 0)
+                return null;
+            thread = new ThreadInfo(pid, tid);
+            threads.put(tid, thread);
+        }
+        // threads may rename themselves
+        thread.name = line.substring(nameStart + 2, nameEnd);
+        return thread;
+    }
+}
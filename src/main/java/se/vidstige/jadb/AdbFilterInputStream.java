@@ -3,19 +3,34 @@ package se.vidstige.jadb;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Objects;
 
+/**
+ * Turns the CRLF line endings of legacy shell output back into LF.
+ */
 public class AdbFilterInputStream extends FilterInputStream {
+    private static final byte CR = 0x0d;
+    private static final byte LF = 0x0a;
+    // a CR that ended the previous read, it is dropped if a LF follows
+    private boolean pendingCr = false;
+
     public AdbFilterInputStream(InputStream inputStream) {
         super(inputStream);
     }
 
     @Override
     public int read() throws IOException {
-        int b1 = in.read();
-        if (b1 == 0x0d) {
+        int b1;
+        if (pendingCr) {
+            pendingCr = false;
+            b1 = CR;
+        } else {
+            b1 = in.read();
+        }
+        if (b1 == CR) {
             in.mark(1);
             int b2 = in.read();
-            if (b2 == 0x0a) {
+            if (b2 == LF) {
                 return b2;
             }
             in.reset();
@@ -25,19 +40,46 @@ public class AdbFilterInputStream extends FilterInputStream {
 
     @Override
     public int read(byte[] buffer, int offset, int length) throws IOException {
-        int n = 0;
-        for (int i = 0; i < length; i++) {
+        Objects.checkFromIndexSize(offset, length, buffer.length);
+        if (length == 0) return 0;
+        // a pending CR needs room for the byte after it
+        if (length == 1) {
             int b = read();
-            if (b == -1) return n == 0 ? -1 : n;
-            buffer[offset + n] = (byte) b;
-            n++;
+            if (b == -1) return -1;
+            buffer[offset] = (byte) b;
+            return 1;
+        }
+
+        int end = offset + length;
+        while (true) {
+            int start = offset;
+            if (pendingCr) {
+                pendingCr = false;
+                buffer[start++] = CR;
+            }
+            // returns what is available, as soon as there is at least one byte
+            int n = in.read(buffer, start, end - start);
+            if (n == -1) return start == offset ? -1 : 1;
+            int limit = start + n;
 
-            // Return as soon as no more data is available (and at least one byte was read)
-            if (in.available() <= 0) {
-                return n;
+            // translate in place, nothing moves up to the first CR
+            int r = offset;
+            while (r < limit && buffer[r] != CR) r++;
+            int w = r;
+            for (; r < limit; r++) {
+                byte b = buffer[r];
+                if (b == CR) {
+                    if (r + 1 == limit) {
+                        pendingCr = true;
+                        break;
+                    }
+                    if (buffer[r + 1] == LF) continue;
+                }
+                buffer[w++] = b;
             }
+            if (w > offset) return w - offset;
+            // only a CR was read, the byte after it decides what it becomes
         }
-        return n;
     }
 
     @Override
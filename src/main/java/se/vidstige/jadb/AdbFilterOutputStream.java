@@ -2,20 +2,41 @@ package se.vidstige.jadb;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Objects;
 
 public class AdbFilterOutputStream extends LookBackFilteringOutputStream {
+    private static final byte CR = 0x0d;
+    private static final byte LF = 0x0a;
+
     public AdbFilterOutputStream(OutputStream inner) {
         super(inner, 1);
     }
 
     @Override
     public void write(int c) throws IOException {
-        if (!lookback().isEmpty()) {
-            Byte last = lookback().getFirst();
-            if (last != null && last == 0x0d && c == 0x0a) {
-                unwrite();
-            }
+        if (c == LF && lookbackSize() > 0 && lookback(0) == CR) {
+            unwrite();
         }
         super.write(c);
     }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0)
+            return;
+        if (b[off] == LF && lookbackSize() > 0 && lookback(0) == CR) {
+            unwrite();
+        }
+        // the runs between the CRs of CRLFs go out in one piece each
+        int start = off;
+        int end = off + len;
+        for (int i = off; i + 1 < end; i++) {
+            if (b[i] == CR && b[i + 1] == LF) {
+                super.write(b, start, i - start);
+                start = i + 1;
+            }
+        }
+        super.write(b, start, end - start);
+    }
 }
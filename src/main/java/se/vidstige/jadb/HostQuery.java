@@ -0,0 +1,83 @@
+package se.vidstige.jadb;
+
+import java.io.IOException;
+
+/**
+ * Runs requests to the adb server on transports of a factory. A transport that was pooled may
+ * have been closed by the server meanwhile, so a request failing on it is retried once on a new connection.
+ */
+final class HostQuery {
+    interface Exchange<T> {
+        T run(Transport transport) throws IOException, JadbException;
+    }
+
+    private HostQuery() {
+    }
+
+    /**
+     * @param reusable whether the reply is read in full, so that the connection may serve another query
+     */
+    static <T> T run(ITransportFactory factory, boolean reusable, Exchange<T> exchange) throws IOException, JadbException {
+        Transport transport = factory.createTransport();
+        try {
+            return run(factory, transport, reusable, exchange);
+        } catch (IOException e) {
+            if (!transport.isPooled())
+                throw e;
+        }
+        return run(factory, factory.createFreshTransport(), reusable, exchange);
+    }
+
+    /**
+     * Send a request whose connection stays with the caller, such as a transport switch or a device tracker
+     *
+     * @return the transport after the server accepted the request, to be closed by the caller
+     */
+    static Transport open(ITransportFactory factory, String request) throws IOException, JadbException {
+        Transport transport = factory.createTransport();
+        try {
+            return open(factory, transport, request);
+        } catch (IOException e) {
+            if (!transport.isPooled())
+                throw e;
+        }
+        return open(factory, factory.createFreshTransport(), request);
+    }
+
+    private static <T> T run(ITransportFactory factory, Transport transport, boolean reusable, Exchange<T> exchange)
+            throws IOException, JadbException {
+        T result;
+        try {
+            result = exchange.run(transport);
+        } catch (IOException e) {
+            factory.discardTransport(transport);
+            throw e;
+        } catch (JadbException e) {
+            transport.close();
+            throw e;
+        }
+        if (reusable)
+            factory.releaseTransport(transport);
+        else
+            transport.close();
+        return result;
+    }
+
+    /**
+     * Send a request on the given transport, which is closed if the request fails
+     */
+    static Transport open(ITransportFactory factory, Transport transport, String request)
+            throws IOException, JadbException {
+        try {
+            transport.send(request);
+            transport.verifyResponse();
+        } catch (IOException e) {
+            factory.discardTransport(transport);
+            throw e;
+        } catch (JadbException e) {
+            transport.close();
+            throw e;
+        }
+        return transport;
+    }
+}
@@ -7,4 +7,32 @@ import java.io.IOException;
  */
 public interface ITransportFactory {
     Transport createTransport() throws IOException;
+
+    /**
+     * @return a transport on a new connection, used when a pooled one turned out to be closed
+     */
+    default Transport createFreshTransport() throws IOException {
+        return createTransport();
+    }
+
+    /**
+     * @return a transport on a new connection for file transfers, opened as a socket channel if the factory can
+     */
+    default Transport createSyncTransport() throws IOException {
+        return createFreshTransport();
+    }
+
+    /**
+     * Take back the transport of a completed host query, factories pooling connections may hand it out again
+     */
+    default void releaseTransport(Transport transport) throws IOException {
+        transport.close();
+    }
+
+    /**
+     * Take back a transport that failed
+     */
+    default void discardTransport(Transport transport) throws IOException {
+        transport.close();
+    }
 }
@@ -3,7 +3,6 @@ package se.vidstige.jadb;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -11,6 +10,7 @@ public class JadbConnection implements ITransportFactory {
 
     private final String host;
     private final int port;
+    private final TransportPool pool;
 
     private static final int DEFAULTPORT = 5037;
 
@@ -21,47 +21,66 @@ public class JadbConnection implements ITransportFactory {
     public JadbConnection(String host, int port) {
         this.host = host;
         this.port = port;
+        this.pool = new TransportPool(host, port);
     }
 
     public Transport createTransport() throws IOException {
-        return new Transport(new Socket(host, port));
+        return pool.borrow();
+    }
+
+    @Override
+    public Transport createFreshTransport() throws IOException {
+        return pool.connect();
+    }
+
+    @Override
+    public Transport createSyncTransport() throws IOException {
+        return pool.connectChannel();
+    }
+
+    @Override
+    public void releaseTransport(Transport transport) {
+        pool.release(transport);
+    }
+
+    @Override
+    public void discardTransport(Transport transport) {
+        pool.discard(transport);
     }
 
     public String getHostVersion() throws IOException, JadbException {
-        try (Transport transport = createTransport()) {
+        return HostQuery.run(this, true, transport -> {
             transport.send("host:version");
             transport.verifyResponse();
             return transport.readString();
-        }
+        });
     }
 
     public InetSocketAddress connectToTcpDevice(InetSocketAddress inetSocketAddress)
             throws IOException, JadbException, ConnectionToRemoteDeviceException {
-        try (Transport transport = createTransport()) {
+        try (Transport transport = createFreshTransport()) {
             return new HostConnectToRemoteTcpDevice(transport).connect(inetSocketAddress);
         }
     }
 
     public InetSocketAddress disconnectFromTcpDevice(InetSocketAddress tcpAddressEntity)
             throws IOException, JadbException, ConnectionToRemoteDeviceException {
-        try (Transport transport = createTransport()) {
+        try (Transport transport = createFreshTransport()) {
             return new HostDisconnectFromRemoteTcpDevice(transport).disconnect(tcpAddressEntity);
         }
     }
 
     public List<JadbDevice> getDevices() throws IOException, JadbException {
-        try (Transport transport = createTransport()) {
+        String body = HostQuery.run(this, true, transport -> {
             transport.send("host:devices");
             transport.verifyResponse();
-            String body = transport.readString();
-            return parseDevices(body);
-        }
+            return transport.readString();
+        });
+        return parseDevices(body);
     }
 
     public DeviceWatcher createDeviceWatcher(DeviceDetectionListener listener) throws IOException, JadbException {
-        Transport transport = createTransport();
-        transport.send("host:track-devices");
-        transport.verifyResponse();
+        Transport transport = HostQuery.open(this, "host:track-devices");
         return new DeviceWatcher(transport, listener, this);
     }
 
@@ -71,7 +90,7 @@ public class JadbConnection implements ITransportFactory {
         for (String line : lines) {
             String[] parts = line.split("\t");
             if (parts.length > 1) {
-                devices.add(new JadbDevice(parts[0], this)); // parts[1] is type
+                devices.add(new JadbDevice(parts[0], JadbDevice.convertState(parts[1].trim()), this));
             }
         }
         return devices;
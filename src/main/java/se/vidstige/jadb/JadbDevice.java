@@ -3,8 +3,15 @@ package se.vidstige.jadb;
 import se.vidstige.jadb.managers.Bash;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 public class JadbDevice {
@@ -30,11 +37,19 @@ public class JadbDevice {
     //noinspection OctalInteger
     private static final int DEFAULT_MODE = 0664;
     private final String serial;
+    private final State detectedState;
     private final ITransportFactory transportFactory;
     private static final int DEFAULT_TCPIP_PORT = 5555;
+    // files pushed at the same time by pushAll, each over its own sync connection
+    private static final int MAX_CONCURRENT_PUSHES = 4;
 
     JadbDevice(String serial, ITransportFactory tFactory) {
+        this(serial, null, tFactory);
+    }
+
+    JadbDevice(String serial, State detectedState, ITransportFactory tFactory) {
         this.serial = serial;
+        this.detectedState = detectedState;
         this.transportFactory = tFactory;
     }
 
@@ -44,10 +59,11 @@ public class JadbDevice {
 
     private JadbDevice(ITransportFactory tFactory) {
         serial = null;
+        detectedState = null;
         this.transportFactory = tFactory;
     }
 
-    private State convertState(String type) {
+    static State convertState(String type) {
         switch (type) {
             case "device":     return State.Device;
             case "offline":    return State.Offline;
@@ -63,27 +79,33 @@ public class JadbDevice {
     }
 
     private Transport getTransport() throws IOException, JadbException {
-        Transport transport = transportFactory.createTransport();
-        // Do not use try-with-resources here. We want to return unclosed Transport and it is up to caller
-        // to close it. Here we close it only in case of exception.
-        try {
-            send(transport, serial == null ? "host:transport-any" : "host:transport:" + serial );
-        } catch (IOException|JadbException e) {
-            transport.close();
-            throw e;
-        }
-        return transport;
+        // It is up to the caller to close the returned Transport
+        return HostQuery.open(transportFactory, serial == null ? "host:transport-any" : "host:transport:" + serial);
+    }
+
+    private Transport getSyncTransport() throws IOException, JadbException {
+        // It is up to the caller to close the returned Transport
+        return HostQuery.open(transportFactory, transportFactory.createSyncTransport(),
+                serial == null ? "host:transport-any" : "host:transport:" + serial);
     }
 
     public String getSerial() {
         return serial;
     }
 
+    /**
+     * @return the state reported when the device was listed, or null if it was not obtained from a device list.
+     * Unlike {@link #getState()} this does not query the adb server.
+     */
+    public State getDetectedState() {
+        return detectedState;
+    }
+
     public State getState() throws IOException, JadbException {
-        try (Transport transport = transportFactory.createTransport()) {
+        return HostQuery.run(transportFactory, true, transport -> {
             send(transport, serial == null ? "host:get-state" : "host-serial:" + serial + ":get-state");
             return convertState(transport.readString());
-        }
+        });
     }
 
     /** <p>Execute a shell command.</p>
@@ -140,33 +162,55 @@ public class JadbDevice {
         return new BufferedInputStream(transport.getInputStream());
     }
 
+    /** <p>Open a shell that reads commands from its input, with raw binary input and output.</p>
+     *
+     * <p>The shell stays alive until the channel is closed, so several commands can be run over one transport.
+     * Support for this was added in Lollipop (Android 5.0), same as {@link #execute(String, String...)}.</p>
+     *
+     * @return channel to the shell's combined stdout/stderr and stdin.
+     * @throws IOException
+     * @throws JadbException
+     */
+    public ShellChannel openShell() throws IOException, JadbException {
+        Transport transport = getTransport();
+        try {
+            send(transport, "exec:sh");
+        } catch (IOException|JadbException e) {
+            transport.close();
+            throw e;
+        }
+        return new ShellChannel(transport);
+    }
+
+    // host-serial requests are served by the adb server itself, they need no transport switch
+
     public String forward(ForwardType localType, String localPort, ForwardType remoteType, String remotePort) throws IOException, JadbException {
         String local = String.format("%s:%s", localType == ForwardType.TCP ? "tcp" : "localabstract", localPort);
         String remote = String.format("%s:%s", remoteType == ForwardType.TCP ? "tcp" : "localabstract", remotePort);
-        Transport transport = getTransport();
         if (serial == null)
             throw new JadbException("No serial number");
-        send(transport, String.format("host-serial:%s:forward:%s;%s", serial, local, remote));
-        return new String(transport.getInputStream().readAllBytes());
+        return HostQuery.run(transportFactory, false, transport -> {
+            send(transport, String.format("host-serial:%s:forward:%s;%s", serial, local, remote));
+            return new String(transport.getInputStream().readAllBytes());
+        });
     }
 
     public void clearForward() throws IOException, JadbException {
-        Transport transport = getTransport();
         if (serial == null)
             throw new JadbException("No serial number");
         String hostPrefix = "host-serial:" + serial;
-        send(transport, hostPrefix + ":list-forward");
-        String result = new String(transport.getInputStream().readAllBytes());
-        result = result.substring(4);
+        String result = HostQuery.run(transportFactory, true, transport -> {
+            send(transport, hostPrefix + ":list-forward");
+            return transport.readString();
+        });
         if (!result.isEmpty()) {
-            String[] forwardInfo = result.split("\n");
-            for (int i = 0; i < forwardInfo.length - 1; i++) {
-                String forward = forwardInfo[i];
+            for (String forward : result.split("\n")) {
                 String[] info = forward.split("\\s+");
                 if (info.length == 3 && info[0].equals(serial)) {
-                    transport = getTransport();
-                    send(transport, hostPrefix + ":killforward:"+info[1]);
-                    transport.getInputStream().readAllBytes();
+                    HostQuery.run(transportFactory, false, transport -> {
+                        send(transport, hostPrefix + ":killforward:" + info[1]);
+                        return transport.getInputStream().readAllBytes();
+                    });
                 }
             }
         }
@@ -174,9 +218,11 @@ public class JadbDevice {
 
     public String killForward(ForwardType localType, String localPort) throws IOException, JadbException {
         String local = String.format("%s:%s", localType == ForwardType.TCP ? "tcp" : "localabstract", localPort);
-        Transport transport = getTransport();
-        send(transport, "host:killforward:"+local);
-        return new String(transport.getInputStream().readAllBytes());
+        String hostPrefix = serial == null ? "host" : "host-serial:" + serial;
+        return HostQuery.run(transportFactory, false, transport -> {
+            send(transport, hostPrefix + ":killforward:" + local);
+            return new String(transport.getInputStream().readAllBytes());
+        });
     }
 
     /**
@@ -243,8 +289,53 @@ public class JadbDevice {
     }
 
     public void push(File local, RemoteFile remote) throws IOException, JadbException {
-        try (FileInputStream fileStream = new FileInputStream(local)) {
-            push(fileStream, TimeUnit.MILLISECONDS.toSeconds(local.lastModified()), DEFAULT_MODE, remote);
+        try (FileChannel file = FileChannel.open(local.toPath(), StandardOpenOption.READ);
+             Transport transport = getSyncTransport()) {
+            SyncTransport sync = transport.startSync();
+            sync.send("SEND", remote.getPath() + "," + DEFAULT_MODE);
+
+            sync.sendFile(file);
+
+            sync.sendStatus("DONE", (int) TimeUnit.MILLISECONDS.toSeconds(local.lastModified()));
+            sync.verifyStatus();
+        }
+    }
+
+    /**
+     * Push several files at once, each over its own connection
+     *
+     * @param files remote destination by local file
+     */
+    public void pushAll(Map<File, RemoteFile> files) throws IOException, JadbException {
+        if (files.size() <= 1) {
+            for (Map.Entry<File, RemoteFile> entry : files.entrySet())
+                push(entry.getKey(), entry.getValue());
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(files.size(), MAX_CONCURRENT_PUSHES));
+        try {
+            List<Future<Void>> pushes = new ArrayList<>();
+            for (Map.Entry<File, RemoteFile> entry : files.entrySet()) {
+                pushes.add(executor.submit(() -> {
+                    push(entry.getKey(), entry.getValue());
+                    return null;
+                }));
+            }
+            for (Future<Void> push : pushes) {
+                try {
+                    push.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof JadbException) throw (JadbException) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pushing");
+        } finally {
+            executor.shutdownNow();
         }
     }
 
@@ -258,8 +349,13 @@ public class JadbDevice {
     }
 
     public void pull(RemoteFile remote, File local) throws IOException, JadbException {
-        try (FileOutputStream fileStream = new FileOutputStream(local)) {
-            pull(remote, fileStream);
+        try (FileChannel file = FileChannel.open(local.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+             Transport transport = getSyncTransport()) {
+            SyncTransport sync = transport.startSync();
+            sync.send("RECV", remote.getPath());
+
+            sync.readChunksTo(file);
         }
     }
 
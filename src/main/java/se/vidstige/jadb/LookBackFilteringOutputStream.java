@@ -3,31 +3,79 @@ package se.vidstige.jadb;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayDeque;
+import java.util.Objects;
 
+/**
+ * Holds back the last bytes written, so that a subclass can look at them and take them back
+ * before they reach the inner stream. The bytes are kept in a ring, oldest first.
+ * Subclasses filtering in {@link #write(int)} must filter {@link #write(byte[], int, int)} too.
+ */
 public class LookBackFilteringOutputStream extends FilterOutputStream {
-    private final ArrayDeque<Byte> buffer;
-    private final int lookBackBufferSize;
+    private final byte[] buffer;
+    // index of the oldest byte held back, and the number of bytes held back
+    private int head = 0;
+    private int size = 0;
 
     protected LookBackFilteringOutputStream(OutputStream inner, int lookBackBufferSize)
     {
         super(inner);
-        this.lookBackBufferSize = lookBackBufferSize;
-        this.buffer = new ArrayDeque<>(lookBackBufferSize);
+        this.buffer = new byte[lookBackBufferSize];
     }
 
+    /**
+     * Drop the oldest byte held back
+     */
     protected void unwrite() {
-        buffer.removeFirst();
+        if (size == 0)
+            throw new IllegalStateException("Nothing to unwrite");
+        head = (head + 1) % buffer.length;
+        size--;
     }
 
-    protected ArrayDeque<Byte> lookback() {
-        return buffer;
+    /**
+     * @return the number of bytes held back
+     */
+    protected int lookbackSize() {
+        return size;
+    }
+
+    /**
+     * @param index 0 for the oldest byte held back
+     */
+    protected byte lookback(int index) {
+        Objects.checkIndex(index, size);
+        return buffer[(head + index) % buffer.length];
     }
 
     @Override
     public void write(int c) throws IOException {
-        buffer.addLast((byte) c);
-        flushBuffer(lookBackBufferSize);
+        if (buffer.length == 0) {
+            out.write(c);
+            return;
+        }
+        if (size == buffer.length)
+            flushBuffer(size - 1);
+        buffer[(head + size) % buffer.length] = (byte) c;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        int capacity = buffer.length;
+        if (len >= capacity) {
+            // everything held back and the start of b go out, the end of b is held back
+            flushBuffer(0);
+            out.write(b, off, len - capacity);
+            System.arraycopy(b, off + len - capacity, buffer, 0, capacity);
+            head = 0;
+            size = capacity;
+            return;
+        }
+        flushBuffer(Math.min(size, capacity - len));
+        for (int i = 0; i < len; i++)
+            buffer[(head + size + i) % capacity] = b[off + i];
+        size += len;
     }
 
     @Override
@@ -36,10 +84,20 @@ public class LookBackFilteringOutputStream extends FilterOutputStream {
         out.flush();
     }
 
-    private void flushBuffer(int size) throws IOException {
-        while (buffer.size() > size) {
-            Byte b = buffer.removeFirst();
-            out.write(b);
-        }
+    /**
+     * Write out the oldest bytes held back
+     *
+     * @param keep number of bytes to keep held back
+     */
+    private void flushBuffer(int keep) throws IOException {
+        int count = size - keep;
+        if (count <= 0)
+            return;
+        int first = Math.min(count, buffer.length - head);
+        out.write(buffer, head, first);
+        if (first < count)
+            out.write(buffer, 0, count - first);
+        head = (head + count) % buffer.length;
+        size = keep;
     }
 }
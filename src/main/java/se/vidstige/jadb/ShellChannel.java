@@ -0,0 +1,46 @@
+package se.vidstige.jadb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A long-lived shell on the device, opened by {@link JadbDevice#openShell()}.
+ */
+public class ShellChannel implements Closeable {
+    private final Transport transport;
+
+    ShellChannel(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return combined stdout/stderr of the shell.
+     */
+    public InputStream getInputStream() {
+        return transport.getInputStream();
+    }
+
+    /**
+     * @return stdin of the shell.
+     */
+    public OutputStream getOutputStream() {
+        return transport.getOutputStream();
+    }
+
+    /**
+     * Set the timeout of reads from the shell.
+     *
+     * @param timeout timeout in milliseconds, 0 to wait forever.
+     * @throws IOException
+     */
+    public void setTimeout(int timeout) throws IOException {
+        transport.setTimeout(timeout);
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+}
@@ -1,6 +1,12 @@
 package se.vidstige.jadb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -8,12 +14,24 @@ import java.nio.charset.StandardCharsets;
  */
 public class SyncTransport {
 
+    // largest DATA chunk adb accepts
+    private static final int MAX_CHUNK = 64 * 1024;
+    // chunks sent with one gathering write
+    private static final int CHUNKS_PER_WRITE = 16;
+
     private final DataOutput output;
     private final DataInput input;
+    // the connection underneath the streams if it is a channel, used for bulk transfers
+    private final SocketChannel channel;
 
     public SyncTransport(DataOutput outputStream, DataInput inputStream) {
+        this(outputStream, inputStream, null);
+    }
+
+    SyncTransport(DataOutput outputStream, DataInput inputStream, SocketChannel channel) {
         output = outputStream;
         input = inputStream;
+        this.channel = channel;
     }
 
     public void send(String syncCommand, String name) throws IOException {
@@ -112,4 +130,86 @@ public class SyncTransport {
             n = readChunk(buffer);
         }
     }
+
+    /**
+     * Send the rest of a file as DATA chunks. Over a channel the file is mapped a window at a time,
+     * and the headers and payloads of the chunks in a window go out with one gathering write.
+     */
+    public void sendFile(FileChannel file) throws IOException {
+        if (channel == null) {
+            sendStream(Channels.newInputStream(file));
+            return;
+        }
+        long position = file.position();
+        long size = file.size();
+        ByteBuffer[] buffers = new ByteBuffer[CHUNKS_PER_WRITE * 2];
+        while (position < size) {
+            int windowSize = (int) Math.min(size - position, (long) MAX_CHUNK * CHUNKS_PER_WRITE);
+            MappedByteBuffer window = file.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+            int count = 0;
+            for (int offset = 0; offset < windowSize; offset += MAX_CHUNK) {
+                int length = Math.min(MAX_CHUNK, windowSize - offset);
+                buffers[count++] = chunkHeader("DATA", length);
+                buffers[count++] = window.duplicate().position(offset).limit(offset + length);
+            }
+            long remaining = windowSize + 8L * (count / 2);
+            while (remaining > 0)
+                remaining -= channel.write(buffers, 0, count);
+            position += windowSize;
+        }
+        file.position(size);
+    }
+
+    /**
+     * Receive DATA chunks into a file until DONE. Over a channel each payload and the header after it,
+     * there always is one, come in with one scattering read.
+     */
+    public void readChunksTo(FileChannel file) throws IOException, JadbException {
+        if (channel == null) {
+            readChunksTo(Channels.newOutputStream(file));
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer payload = ByteBuffer.allocateDirect(MAX_CHUNK);
+        ByteBuffer[] buffers = {payload, header};
+        readFully(header);
+        while (true) {
+            header.flip();
+            byte[] id = new byte[4];
+            header.get(id);
+            int n = header.getInt();
+            String idString = new String(id, StandardCharsets.US_ASCII);
+            if ("FAIL".equals(idString)) {
+                ByteBuffer message = ByteBuffer.allocate(n);
+                readFully(message);
+                throw new JadbException(new String(message.array(), StandardCharsets.UTF_8));
+            }
+            if (!"DATA".equals(idString)) return;
+
+            if (n > payload.capacity()) {
+                payload = ByteBuffer.allocateDirect(n);
+                buffers[0] = payload;
+            }
+            payload.clear().limit(n);
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(buffers) == -1) throw new EOFException();
+            }
+            payload.flip();
+            while (payload.hasRemaining())
+                file.write(payload);
+        }
+    }
+
+    private static ByteBuffer chunkHeader(String id, int length) {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(id.getBytes(StandardCharsets.US_ASCII)).putInt(length).flip();
+        return header;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) throw new EOFException();
+        }
+    }
 }
@@ -2,6 +2,7 @@ package se.vidstige.jadb;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 
 class Transport implements Closeable {
@@ -10,8 +11,15 @@ class Transport implements Closeable {
     private final InputStream inputStream;
     private final DataInputStream dataInput;
     private final DataOutputStream dataOutput;
+    private final Socket socket;
+    // set by the pool: whether the transport was handed out again, whether a host query completed on it,
+    // and since when it is idle
+    private boolean pooled = false;
+    private boolean used = false;
+    private long idleSince = 0;
 
-    private Transport(OutputStream outputStream, InputStream inputStream) {
+    private Transport(Socket socket, OutputStream outputStream, InputStream inputStream) {
+        this.socket = socket;
         this.outputStream = outputStream;
         this.inputStream = inputStream;
         this.dataInput = new DataInputStream(inputStream);
@@ -19,7 +27,7 @@ class Transport implements Closeable {
     }
 
     public Transport(Socket socket) throws IOException {
-        this(socket.getOutputStream(), socket.getInputStream());
+        this(socket, socket.getOutputStream(), socket.getInputStream());
     }
 
     public String readString() throws IOException {
@@ -36,6 +44,51 @@ class Transport implements Closeable {
         return inputStream;
     }
 
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public void setTimeout(int timeout) throws IOException {
+        socket.setSoTimeout(timeout);
+    }
+
+    boolean isPooled() {
+        return pooled;
+    }
+
+    void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    boolean isUsed() {
+        return used;
+    }
+
+    void setUsed() {
+        used = true;
+    }
+
+    void setIdle(long now) {
+        idleSince = now;
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    /**
+     * @return false if the connection is known to be closed or holds data no one asked for,
+     * a connection closed by the server only shows once it is used
+     */
+    boolean isHealthy() {
+        try {
+            return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown()
+                    && inputStream.available() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     public void verifyResponse() throws IOException, JadbException {
         String response = readString(4);
         if (!"OKAY".equals(response)) {
@@ -61,10 +114,17 @@ class Transport implements Closeable {
         writer.flush();
     }
 
+    /**
+     * @return the channel of the connection, or null if it was not opened as a channel
+     */
+    SocketChannel getChannel() {
+        return socket.getChannel();
+    }
+
     public SyncTransport startSync() throws IOException, JadbException {
         send("sync:");
         verifyResponse();
-        return new SyncTransport(dataOutput, dataInput);
+        return new SyncTransport(dataOutput, dataInput, socket.getChannel());
     }
 
     @Override
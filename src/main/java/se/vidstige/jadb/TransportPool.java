@@ -0,0 +1,139 @@
+package se.vidstige.jadb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connections to the adb server kept for reuse. A few connections are opened ahead of use,
+ * so that commands do not wait for the connect, and connections of completed host queries
+ * are kept as long as the server leaves them open. Idle connections are dropped after a while
+ * and checked before they are handed out again.
+ */
+class TransportPool {
+    private static final long IDLE_TIMEOUT_MS = 30_000;
+    private static final int MAX_IDLE = 4;
+    // connections kept open ahead of use
+    private static final int WARM_IDLE = 2;
+    private static final ExecutorService CONNECTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "adb-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String host;
+    private final int port;
+    // most recently idle first
+    private final ConcurrentLinkedDeque<Transport> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean warming = new AtomicBoolean(false);
+    // cleared once the server closed a connection after a host query, as the adb server does
+    private volatile boolean reuseQueries = true;
+
+    TransportPool(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @return an idle connection if there is a healthy one, else a new connection
+     */
+    Transport borrow() throws IOException {
+        long now = System.currentTimeMillis();
+        Transport transport;
+        while ((transport = idle.pollFirst()) != null) {
+            if (now - transport.getIdleSince() < IDLE_TIMEOUT_MS && transport.isHealthy()) {
+                transport.setPooled(true);
+                warm();
+                return transport;
+            }
+            closeQuietly(transport);
+        }
+        transport = connect();
+        warm();
+        return transport;
+    }
+
+    /**
+     * @return a new connection, bypassing the idle ones
+     */
+    Transport connect() throws IOException {
+        return new Transport(new Socket(host, port));
+    }
+
+    /**
+     * @return a new connection opened as a socket channel, for bulk transfers over sync
+     */
+    Transport connectChannel() throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            return new Transport(channel.socket());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Take back the connection of a completed host query
+     */
+    void release(Transport transport) {
+        transport.setUsed();
+        if (!reuseQueries || !transport.isHealthy()) {
+            closeQuietly(transport);
+            return;
+        }
+        offer(transport);
+    }
+
+    /**
+     * Drop a connection that failed, if it was reused the server does not keep connections open
+     */
+    void discard(Transport transport) {
+        if (transport.isPooled() && transport.isUsed())
+            reuseQueries = false;
+        closeQuietly(transport);
+    }
+
+    private void offer(Transport transport) {
+        long now = System.currentTimeMillis();
+        transport.setIdle(now);
+        idle.offerFirst(transport);
+        // the least recently idle go first
+        Transport last;
+        while ((last = idle.peekLast()) != null
+                && (idle.size() > MAX_IDLE || now - last.getIdleSince() >= IDLE_TIMEOUT_MS)) {
+            if (idle.removeLastOccurrence(last))
+                closeQuietly(last);
+        }
+    }
+
+    /**
+     * Open connections in the background until enough are idle
+     */
+    private void warm() {
+        if (idle.size() >= WARM_IDLE || !warming.compareAndSet(false, true))
+            return;
+        CONNECTOR.execute(() -> {
+            try {
+                while (idle.size() < WARM_IDLE)
+                    offer(connect());
+            } catch (IOException ignored) {
+                // the server is not there, the next command reports it
+            } finally {
+                warming.set(false);
+            }
+        });
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
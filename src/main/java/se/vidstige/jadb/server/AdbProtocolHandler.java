@@ -37,6 +37,8 @@ class AdbProtocolHandler implements Runnable {
     }
 
     private void runServer() throws IOException {
+        // replies are written in pieces, without this a client reusing the connection waits for delayed acks
+        socket.setTcpNoDelay(true);
         try (
             DataInputStream input = new DataInputStream(socket.getInputStream());
             DataOutputStream output = new DataOutputStream(socket.getOutputStream())
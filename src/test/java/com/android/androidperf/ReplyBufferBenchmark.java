@@ -0,0 +1,108 @@
+package com.android.androidperf;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of server replies of 4 KB, 64 KB and 1 MB: {@link ReplyBuffer} against the boxed
+ * {@code ArrayList<Byte>} framing it replaced, which searched the whole reply after every 1 KB read.
+ * The bytes counter gives the throughput in bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplyBufferBenchmark {
+    private static final byte[] MSG_END_BYTES = ServerConnection.MSG_END.getBytes();
+
+    @Param({"4096", "65536", "1048576"})
+    public int replySize;
+
+    @Param({"replyBuffer", "boxed"})
+    public String framing;
+
+    private byte[] message;
+    private final ReplyBuffer replyBuffer = new ReplyBuffer(MSG_END_BYTES);
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        // latency replies are lines of numbers
+        byte[] line = "123456789012\t123456789012\t123456789012\n".getBytes();
+        message = new byte[replySize + MSG_END_BYTES.length];
+        for (int i = 0; i < replySize; i++)
+            message[i] = line[i % line.length];
+        System.arraycopy(MSG_END_BYTES, 0, message, replySize, MSG_END_BYTES.length);
+    }
+
+    @Benchmark
+    public byte[] decode(Bytes counter) throws IOException {
+        InputStream in = new ByteArrayInputStream(message);
+        byte[] reply = framing.equals("boxed") ? decodeBoxed(in) : decode(in);
+        counter.bytes += reply.length;
+        return reply;
+    }
+
+    private byte[] decode(InputStream in) throws IOException {
+        replyBuffer.reset();
+        while (true) {
+            int len = replyBuffer.readFrom(in);
+            int msgEnd = replyBuffer.findTerminator();
+            if (msgEnd != -1)
+                return replyBuffer.copyOf(msgEnd);
+            if (len == -1)
+                return new byte[0];
+        }
+    }
+
+    /**
+     * The framing of Device.sendMSG before {@link ReplyBuffer}
+     */
+    private static byte[] decodeBoxed(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        List<Byte> msgEndBytes = Arrays.asList(box(MSG_END_BYTES));
+        ArrayList<Byte> replyBuffer = new ArrayList<>();
+        while (true) {
+            int len = in.read(buffer);
+            if (len > 0)
+                replyBuffer.addAll(Arrays.asList(box(buffer)).subList(0, len));
+            int msgEnd = Collections.indexOfSubList(replyBuffer, msgEndBytes);
+            if (msgEnd != -1) {
+                Byte[] reply = replyBuffer.subList(0, msgEnd).toArray(new Byte[msgEnd]);
+                byte[] bytes = new byte[reply.length];
+                for (int i = 0; i < reply.length; i++)
+                    bytes[i] = reply[i];
+                return bytes;
+            }
+            if (len == -1)
+                return new byte[0];
+        }
+    }
+
+    private static Byte[] box(byte[] bytes) {
+        Byte[] boxed = new Byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            boxed[i] = bytes[i];
+        return boxed;
+    }
+}
@@ -0,0 +1,102 @@
+package se.vidstige.jadb;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CRLF translation of multi-megabyte legacy shell dumps, read in 8 KB blocks through a buffered stream
+ * as executeShell hands them out: {@link AdbFilterInputStream} against the byte-by-byte filter it replaced.
+ * The bytes counter gives the throughput in bytes per second of the dump.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AdbFilterInputStreamBenchmark {
+    @Param({"2", "8"})
+    public int megabytes;
+
+    @Param({"block", "byteByByte"})
+    public String filter;
+
+    private byte[] dump;
+    private final byte[] buffer = new byte[8192];
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        // lines in the manner of dumpsys SurfaceFlinger
+        byte[] line = "+ Layer 0x7615a5469f98 (SurfaceView - com.android.chrome/Main#0) z=1 pos=(0,0)\r\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        dump = new byte[megabytes << 20];
+        for (int i = 0; i < dump.length; i++)
+            dump[i] = line[i % line.length];
+    }
+
+    @Benchmark
+    public long read(Bytes counter) throws IOException {
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(dump));
+        in = filter.equals("block") ? new AdbFilterInputStream(in) : new ByteByByteFilterInputStream(in);
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) != -1)
+            total += n;
+        counter.bytes += dump.length;
+        return total;
+    }
+
+    /**
+     * The translation of AdbFilterInputStream before it read blocks
+     */
+    private static class ByteByByteFilterInputStream extends FilterInputStream {
+        ByteByByteFilterInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b1 = in.read();
+            if (b1 == 0x0d) {
+                in.mark(1);
+                int b2 = in.read();
+                if (b2 == 0x0a) {
+                    return b2;
+                }
+                in.reset();
+            }
+            return b1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = 0;
+            for (int i = 0; i < length; i++) {
+                int b = read();
+                if (b == -1) return n == 0 ? -1 : n;
+                buffer[offset + n] = (byte) b;
+                n++;
+
+                // Return as soon as no more data is available (and at least one byte was read)
+                if (in.available() <= 0) {
+                    return n;
+                }
+            }
+            return n;
+        }
+    }
+}
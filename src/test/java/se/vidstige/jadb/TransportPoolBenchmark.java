@@ -0,0 +1,161 @@
+package se.vidstige.jadb;
+
+import org.openjdk.jmh.annotations.*;
+import se.vidstige.jadb.server.AdbDeviceResponder;
+import se.vidstige.jadb.server.AdbResponder;
+import se.vidstige.jadb.server.AdbServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host queries per second over pooled connections against a new connection per query, as before {@link TransportPool}.
+ * The fake {@link AdbServer} keeps connections open, the closing server closes them after each reply as the adb server does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransportPoolBenchmark {
+    private static final String SERIAL = "emulator-5554";
+
+    @Param({"pooled", "perQuery"})
+    public String transports;
+
+    @Param({"keepAlive", "closing"})
+    public String server;
+
+    private AdbServer adbServer;
+    private ServerSocket closingServer;
+    private JadbDevice device;
+
+    @Setup
+    public void setup() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        if (server.equals("keepAlive")) {
+            adbServer = new AdbServer(new FakeResponder(), port) {
+                @Override
+                protected Runnable createResponder(Socket socket) {
+                    // pooled connections stay open, so every one needs a handler of its own
+                    Runnable handler = super.createResponder(socket);
+                    return () -> new Thread(handler).start();
+                }
+            };
+            adbServer.start();
+        } else {
+            closingServer = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this::serveAndClose, "closing-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        ITransportFactory factory;
+        if (transports.equals("pooled")) {
+            factory = new JadbConnection("localhost", port);
+        } else {
+            factory = () -> new Transport(new Socket("localhost", port));
+        }
+        device = new JadbDevice(SERIAL, factory);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (adbServer != null)
+            adbServer.stop();
+        if (closingServer != null)
+            closingServer.close();
+    }
+
+    @Benchmark
+    public JadbDevice.State getState() throws IOException, JadbException {
+        return device.getState();
+    }
+
+    /**
+     * Answer one get-state per connection and close it
+     */
+    private void serveAndClose() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = closingServer.accept();
+            } catch (IOException e) {
+                return;
+            }
+            new Thread(() -> {
+                try (socket) {
+                    DataInputStream input = new DataInputStream(socket.getInputStream());
+                    byte[] length = new byte[4];
+                    input.readFully(length);
+                    input.readFully(new byte[Integer.parseInt(new String(length, StandardCharsets.US_ASCII), 16)]);
+                    OutputStream output = socket.getOutputStream();
+                    output.write("OKAY0006device".getBytes(StandardCharsets.US_ASCII));
+                    output.flush();
+                } catch (IOException ignored) {
+                    // a warm connection closed by the pool
+                }
+            }).start();
+        }
+    }
+
+    private static class FakeResponder implements AdbResponder {
+        private final List<AdbDeviceResponder> devices = Collections.singletonList(new FakeDevice());
+
+        @Override
+        public void onCommand(String command) {
+        }
+
+        @Override
+        public int getVersion() {
+            return 32;
+        }
+
+        @Override
+        public List<AdbDeviceResponder> getDevices() {
+            return devices;
+        }
+    }
+
+    private static class FakeDevice implements AdbDeviceResponder {
+        @Override
+        public String getSerial() {
+            return SERIAL;
+        }
+
+        @Override
+        public String getType() {
+            return "device";
+        }
+
+        @Override
+        public void filePushed(RemoteFile path, int mode, ByteArrayOutputStream buffer) {
+        }
+
+        @Override
+        public void filePulled(RemoteFile path, ByteArrayOutputStream buffer) {
+        }
+
+        @Override
+        public void shell(String command, DataOutputStream stdout, DataInput stdin) {
+        }
+
+        @Override
+        public void enableIpCommand(String ip, DataOutputStream outputStream) {
+        }
+
+        @Override
+        public List<RemoteFile> list(String path) {
+            return Collections.emptyList();
+        }
+    }
+}